@@ -29,6 +29,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -62,12 +63,17 @@ public class DalvClient implements Closeable {
     currentConnector.watch(key, new StreamObserver<BackendProto.WatchResponse>() {
       @Override
       public void onNext(BackendProto.WatchResponse value) {
-        WatchEvent event = new WatchEvent()
-            .setUserId(value.getUserId())
-            .setNewValue(value.getOperation().getVal().toByteArray())
-            .setOperationType(value.getOperation().getType())
-            .setKey(key);
-        watcher.process(event);
+        //the servers without batched watches send a single operation
+        List<Common.Operation> ops = value.getOperationsCount() > 0 ? value.getOperationsList()
+            : Collections.singletonList(value.getOperation());
+        for (Common.Operation op : ops) {
+          WatchEvent event = new WatchEvent()
+              .setUserId(value.getUserId())
+              .setNewValue(op.getVal().toByteArray())
+              .setOperationType(op.getType())
+              .setKey(key);
+          watcher.process(event);
+        }
       }
 
       @Override
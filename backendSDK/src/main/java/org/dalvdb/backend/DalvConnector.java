@@ -88,7 +88,9 @@ class DalvConnector implements Closeable {
 
   public void watch(String key, StreamObserver<BackendProto.WatchResponse> responseObserver) {
     BackendProto.WatchRequest request = BackendProto.WatchRequest.newBuilder()
-        .setKey(key).build();
+        .setKey(key)
+        .setBatched(true)
+        .build();
     clientFuture.watch(request, responseObserver);
   }
 
@@ -31,6 +31,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -121,11 +122,16 @@ public class DalvClient implements Closeable {
 
       @Override
       public void onNext(ClientProto.WatchResponse value) {
-        WatchEvent event = new WatchEvent()
-            .setNewValue(value.getOperation().getVal().toByteArray())
-            .setOperationType(value.getOperation().getType())
-            .setKey(key);
-        watcher.process(event);
+        //the servers without batched watches send a single operation
+        List<Common.Operation> ops = value.getOperationsCount() > 0 ? value.getOperationsList()
+            : Collections.singletonList(value.getOperation());
+        for (Common.Operation op : ops) {
+          WatchEvent event = new WatchEvent()
+              .setNewValue(op.getVal().toByteArray())
+              .setOperationType(op.getType())
+              .setKey(key);
+          watcher.process(event);
+        }
       }
 
       @Override
@@ -57,6 +57,7 @@ class DalvConnector implements Closeable {
     ClientProto.WatchRequest request = ClientProto.WatchRequest.newBuilder()
         .setJwt(jwt)
         .setKey(key)
+        .setBatched(true)
         .build();
     clientNonBlocking.watch(request, observer);
   }
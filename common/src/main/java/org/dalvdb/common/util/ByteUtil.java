@@ -17,7 +17,6 @@
 
 package org.dalvdb.common.util;
 
-import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import dalv.common.Common;
 
@@ -31,10 +30,9 @@ public class ByteUtil {
     if (bytes == null) return ops;
     int offset = bytes.length;
     while (offset > 0) {
-      int len = ByteBuffer.wrap(bytes, offset - 4, 4).getInt();
+      int len = OpUtil.readLength(bytes, offset - 4);
       offset -= len + 4;
-      Common.Operation op = Common.Operation.parseFrom(ByteString.copyFrom(bytes, offset, len));
-      ops.addFirst(op);
+      ops.addFirst(OpUtil.parse(bytes, offset, len));
       offset--;
     }
     return ops;
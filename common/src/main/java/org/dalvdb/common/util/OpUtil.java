@@ -18,10 +18,10 @@
 package org.dalvdb.common.util;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import dalv.common.Common;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Iterator;
 
@@ -31,6 +31,30 @@ public class OpUtil {
       .setVal(ByteString.copyFrom(".all", Charset.defaultCharset()))
       .build();
 
+  /**
+   * Parse an operation directly from a region of an array. The value of the returned operation shares the array
+   * instead of copying it, so the array must not be modified afterward.
+   *
+   * @param buf    the array containing the serialized operation
+   * @param offset the start of the operation in the array
+   * @param len    the length of the serialized operation
+   * @return the parsed operation
+   * @throws InvalidProtocolBufferException if the region is not a valid operation
+   */
+  public static Common.Operation parse(byte[] buf, int offset, int len) throws InvalidProtocolBufferException {
+    CodedInputStream in = CodedInputStream.newInstance(buf, offset, len);
+    in.enableAliasing(true);
+    return Common.Operation.parser().parseFrom(in);
+  }
+
+  /**
+   * Read the 4 bytes big-endian length which follows each operation in the framed format
+   */
+  static int readLength(byte[] bytes, int index) {
+    return ((bytes[index] & 0xff) << 24) | ((bytes[index + 1] & 0xff) << 16) |
+        ((bytes[index + 2] & 0xff) << 8) | (bytes[index + 3] & 0xff);
+  }
+
   public static class OperatorsReverseIterator implements Iterator<Common.Operation> {
     private final byte[] recordsBytes;
     private int currentIndex;
@@ -47,10 +71,9 @@ public class OpUtil {
 
     @Override
     public Common.Operation next() {
-      int len = ByteBuffer.wrap(recordsBytes, currentIndex - 4, 4).getInt();
+      int len = readLength(recordsBytes, currentIndex - 4);
       try {
-        Common.Operation op =
-            Common.Operation.parseFrom(ByteString.copyFrom(recordsBytes, currentIndex - (4 + len), len));
+        Common.Operation op = parse(recordsBytes, currentIndex - (4 + len), len);
         currentIndex -= len + 5;
         return op;
       } catch (InvalidProtocolBufferException e) {
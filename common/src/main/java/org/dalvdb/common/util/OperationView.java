@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.common.util;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+import dalv.common.Common;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * A flyweight, read-only view over a serialized {@link Common.Operation}.
+ * <p>
+ * Wrapping a record only locates its fields, the key and the value stay in the original array and are exposed as
+ * slices of it, so scanning a log does not materialize an {@link Common.Operation} per record. A single instance is
+ * meant to be reused for all the records of a scan, which means the values returned by a view are valid only until
+ * the next call to {@link #wrap(byte[], int, int)}. {@link #toOperation()} returns an operation which outlives the
+ * view, but its value still shares the wrapped array.
+ * <p>
+ * The wrapped array must not be modified while it is referenced by the view or by the ByteStrings it returns.
+ * <p>
+ * When only the type and the key are needed, {@link #wrapHeader(byte[])} stops right after the key and locates the
+ * rest of the fields only if they are asked for, so the value of a record which does not contribute to the result is
+ * never even skipped over. This relies on the fields being serialized in field number order, which is what protobuf
+ * does for every record written by Dalv.
+ */
+public final class OperationView {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private byte[] buf;
+  private int offset;
+  private int length;
+  private int type;
+  private int keyOffset;
+  private int keyLength;
+  private int valOffset;
+  private int valLength;
+  private int snapshotId;
+  private String key;
+  private CodedInputStream in;
+  private int pendingTag;
+
+  /**
+   * Point the view at a serialized operation which fills the whole array
+   */
+  public OperationView wrap(byte[] buf) {
+    return wrap(buf, 0, buf.length);
+  }
+
+  /**
+   * Point the view at a serialized operation
+   *
+   * @param buf    the array containing the record
+   * @param offset the start of the record in the array
+   * @param length the length of the record
+   * @return this view
+   */
+  public OperationView wrap(byte[] buf, int offset, int length) {
+    start(buf, offset, length);
+    parse(Integer.MAX_VALUE);
+    return this;
+  }
+
+  /**
+   * Point the view at a serialized operation which fills the whole array, locating only its type and key
+   */
+  public OperationView wrapHeader(byte[] buf) {
+    return wrapHeader(buf, 0, buf.length);
+  }
+
+  /**
+   * Point the view at a serialized operation, locating only its type and key. The other fields are located on the
+   * first call to their getters.
+   *
+   * @param buf    the array containing the record
+   * @param offset the start of the record in the array
+   * @param length the length of the record
+   * @return this view
+   */
+  public OperationView wrapHeader(byte[] buf, int offset, int length) {
+    start(buf, offset, length);
+    parse(Common.Operation.KEY_FIELD_NUMBER);
+    return this;
+  }
+
+  private void start(byte[] buf, int offset, int length) {
+    this.buf = buf;
+    this.offset = offset;
+    this.length = length;
+    this.type = 0;
+    this.keyOffset = offset;
+    this.keyLength = 0;
+    this.valOffset = offset;
+    this.valLength = 0;
+    this.snapshotId = 0;
+    this.key = null;
+    this.in = CodedInputStream.newInstance(buf, offset, length);
+    this.pendingTag = 0;
+  }
+
+  /**
+   * Locate the fields until reaching a field which its number is greater than the provided one, or the end of the
+   * record
+   */
+  private void parse(int lastField) {
+    if (in == null) return;
+    try {
+      int tag = pendingTag != 0 ? pendingTag : in.readTag();
+      while (tag != 0) {
+        if (WireFormat.getTagFieldNumber(tag) > lastField) {
+          pendingTag = tag;
+          return;
+        }
+        switch (WireFormat.getTagFieldNumber(tag)) {
+          case Common.Operation.TYPE_FIELD_NUMBER:
+            type = in.readEnum();
+            break;
+          case Common.Operation.KEY_FIELD_NUMBER:
+            keyLength = in.readRawVarint32();
+            keyOffset = offset + in.getTotalBytesRead();
+            in.skipRawBytes(keyLength);
+            break;
+          case Common.Operation.VAL_FIELD_NUMBER:
+            valLength = in.readRawVarint32();
+            valOffset = offset + in.getTotalBytesRead();
+            in.skipRawBytes(valLength);
+            break;
+          case Common.Operation.SNAPSHOTID_FIELD_NUMBER:
+            snapshotId = in.readUInt32();
+            break;
+          default:
+            in.skipField(tag);
+        }
+        tag = in.readTag();
+      }
+      in = null;
+      pendingTag = 0;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public Common.OpType getType() {
+    Common.OpType opType = Common.OpType.forNumber(type);
+    return opType == null ? Common.OpType.UNRECOGNIZED : opType;
+  }
+
+  /**
+   * @return the key, decoded on the first call
+   */
+  public String getKey() {
+    if (key == null)
+      key = new String(buf, keyOffset, keyLength, UTF_8);
+    return key;
+  }
+
+  /**
+   * @return the UTF-8 encoded key as a slice of the wrapped array, nothing is copied
+   */
+  public ByteString getKeyBytes() {
+    return UnsafeByteOperations.unsafeWrap(buf, keyOffset, keyLength);
+  }
+
+  /**
+   * @return the value as a slice of the wrapped array, nothing is copied
+   */
+  public ByteString getVal() {
+    parse(Integer.MAX_VALUE);
+    return UnsafeByteOperations.unsafeWrap(buf, valOffset, valLength);
+  }
+
+  public int getValLength() {
+    parse(Integer.MAX_VALUE);
+    return valLength;
+  }
+
+  public int getSnapshotId() {
+    parse(Integer.MAX_VALUE);
+    return snapshotId;
+  }
+
+  /**
+   * Materialize the operation, its value shares the wrapped array
+   *
+   * @return the operation the view is pointing at
+   */
+  public Common.Operation toOperation() {
+    try {
+      return OpUtil.parse(buf, offset, length);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
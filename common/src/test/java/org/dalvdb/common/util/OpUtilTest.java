@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.common.util;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import dalv.common.Common;
+import org.junit.Test;
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OpUtilTest {
+  private static final Common.Operation PUT = Common.Operation.newBuilder()
+      .setType(Common.OpType.PUT)
+      .setKey("name")
+      .setVal(ByteString.copyFromUtf8("esa"))
+      .build();
+
+  @Test
+  public void parseRegionTest() throws InvalidProtocolBufferException {
+    byte[] record = PUT.toByteArray();
+    byte[] buf = new byte[record.length + 4];
+    System.arraycopy(record, 0, buf, 2, record.length);
+    //only the region of the array is parsed
+    assertThat(OpUtil.parse(buf, 2, record.length)).isEqualTo(PUT);
+  }
+
+  @Test
+  public void parseEmptyValueTest() throws InvalidProtocolBufferException {
+    Common.Operation empty = PUT.toBuilder().setVal(ByteString.EMPTY).build();
+    byte[] record = empty.toByteArray();
+    assertThat(OpUtil.parse(record, 0, record.length).getVal()).isEqualTo(ByteString.EMPTY);
+    assertThat(OpUtil.parse(new byte[0], 0, 0)).isEqualTo(Common.Operation.getDefaultInstance());
+  }
+
+  @Test
+  public void byteToOpsTest() throws InvalidProtocolBufferException {
+    Common.Operation del = Common.Operation.newBuilder().setType(Common.OpType.DEL).setKey("name").build();
+    byte[] put = ByteUtil.opToByte(PUT);
+    byte[] framed = new byte[put.length + 1 + ByteUtil.opToByte(del).length];
+    System.arraycopy(put, 0, framed, 0, put.length);
+    //the operations are separated by one byte in the legacy log
+    System.arraycopy(ByteUtil.opToByte(del), 0, framed, put.length + 1, framed.length - put.length - 1);
+    assertThat(ByteUtil.byteToOps(framed)).containsExactly(PUT, del);
+    assertThat(ByteUtil.byteToOps(null)).isEmpty();
+  }
+
+  @Test(expected = InvalidProtocolBufferException.class)
+  public void parseTruncatedTest() throws InvalidProtocolBufferException {
+    byte[] record = PUT.toByteArray();
+    OpUtil.parse(record, 0, record.length - 1);
+  }
+
+  @Test(expected = InvalidProtocolBufferException.class)
+  public void parseMalformedTest() throws InvalidProtocolBufferException {
+    byte[] malformed = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+    OpUtil.parse(malformed, 0, malformed.length);
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.common.util;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class OperationViewTest {
+  private static final Common.Operation PUT = Common.Operation.newBuilder()
+      .setType(Common.OpType.PUT)
+      .setKey("name")
+      .setVal(ByteString.copyFromUtf8("esa"))
+      .build();
+  private static final Common.Operation SNAPSHOT = Common.Operation.newBuilder()
+      .setType(Common.OpType.SNAPSHOT)
+      .setSnapshotId(7)
+      .build();
+
+  @Test
+  public void wrapTest() {
+    OperationView view = new OperationView().wrap(PUT.toByteArray());
+    assertThat(view.getType()).isEqualTo(Common.OpType.PUT);
+    assertThat(view.getKey()).isEqualTo("name");
+    assertThat(view.getKeyBytes()).isEqualTo(ByteString.copyFromUtf8("name"));
+    assertThat(view.getVal()).isEqualTo(ByteString.copyFromUtf8("esa"));
+    assertThat(view.getValLength()).isEqualTo(3);
+    assertThat(view.toOperation()).isEqualTo(PUT);
+  }
+
+  @Test
+  public void wrapRegionTest() {
+    byte[] record = PUT.toByteArray();
+    byte[] buf = new byte[record.length + 10];
+    Arrays.fill(buf, (byte) 0xff);
+    System.arraycopy(record, 0, buf, 5, record.length);
+    OperationView view = new OperationView().wrap(buf, 5, record.length);
+    assertThat(view.getKey()).isEqualTo("name");
+    assertThat(view.getVal()).isEqualTo(ByteString.copyFromUtf8("esa"));
+    assertThat(view.toOperation()).isEqualTo(PUT);
+  }
+
+  @Test
+  public void wrapHeaderTest() {
+    byte[] record = PUT.toByteArray();
+    OperationView view = new OperationView().wrapHeader(record);
+    assertThat(view.getType()).isEqualTo(Common.OpType.PUT);
+    assertThat(view.getKey()).isEqualTo("name");
+    //the value is located on the first call
+    assertThat(view.getVal()).isEqualTo(ByteString.copyFromUtf8("esa"));
+    assertThat(view.getVal()).isEqualTo(ByteString.copyFromUtf8("esa"));
+    assertThat(view.getSnapshotId()).isZero();
+
+    view.wrapHeader(SNAPSHOT.toByteArray());
+    assertThat(view.getType()).isEqualTo(Common.OpType.SNAPSHOT);
+    assertThat(view.getSnapshotId()).isEqualTo(7);
+  }
+
+  @Test
+  public void reusedViewTest() {
+    OperationView view = new OperationView().wrap(SNAPSHOT.toByteArray());
+    assertThat(view.getSnapshotId()).isEqualTo(7);
+    //nothing of the previous record is left
+    view.wrapHeader(PUT.toByteArray());
+    assertThat(view.getKey()).isEqualTo("name");
+    assertThat(view.getSnapshotId()).isZero();
+    view.wrap(SNAPSHOT.toByteArray());
+    assertThat(view.getKey()).isEmpty();
+    assertThat(view.getVal()).isEqualTo(ByteString.EMPTY);
+  }
+
+  @Test
+  public void emptyValueTest() {
+    Common.Operation empty = PUT.toBuilder().setVal(ByteString.EMPTY).build();
+    OperationView view = new OperationView().wrapHeader(empty.toByteArray());
+    assertThat(view.getVal()).isEqualTo(ByteString.EMPTY);
+    assertThat(view.getValLength()).isZero();
+    assertThat(view.toOperation()).isEqualTo(empty);
+
+    view.wrap(new byte[0]);
+    assertThat(view.getType()).isEqualTo(Common.OpType.PUT);
+    assertThat(view.getKey()).isEmpty();
+    assertThat(view.getVal()).isEqualTo(ByteString.EMPTY);
+  }
+
+  @Test
+  public void truncatedRecordTest() {
+    byte[] record = PUT.toByteArray();
+    byte[] truncated = Arrays.copyOf(record, record.length - 1);
+    try {
+      new OperationView().wrap(truncated);
+      fail("a truncated record is wrapped");
+    } catch (IllegalStateException expected) {
+    }
+    //the header is complete, the value is only found truncated when it is located
+    OperationView view = new OperationView().wrapHeader(truncated);
+    assertThat(view.getKey()).isEqualTo("name");
+    try {
+      view.getVal();
+      fail("the value of a truncated record is located");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      view.toOperation();
+      fail("a truncated record is materialized");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void malformedRecordTest() {
+    byte[] malformed = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+    try {
+      new OperationView().wrap(malformed);
+      fail("a malformed record is wrapped");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      new OperationView().wrapHeader(malformed);
+      fail("the header of a malformed record is wrapped");
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
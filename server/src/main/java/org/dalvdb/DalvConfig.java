@@ -41,11 +41,39 @@ public final class DalvConfig {
   public static final String CLIENT_PORT = "client.port";
   public static final String JWT_SIGN = "jwt.signature";
   public static final String LOCK_TIMEOUT = "lock.timeout";
-  public static final String LOCK_SIZE_THRESHOLD = "lock.size.threshold";
+  public static final String LOCK_STRIPES = "lock.stripes";
+  public static final String LOCK_QUEUE_DEPTH = "lock.queue.depth";
+  public static final String LOCK_DEADLINE_MARGIN = "lock.deadline.margin";
+  public static final String LOCK_GRANT_THREADS = "lock.grant.threads";
+  public static final String EXECUTION_MODE = "execution.mode";
+  public static final String MAILBOX_THREADS = "mailbox.threads";
+  public static final String STORAGE_THREADS = "storage.threads";
   public static final String BACKEND_PORT = "backend.port";
   public static final String WATCHER_THREAD_NUM = "watcher.thread.num";
+  public static final String WATCH_QUEUE_SIZE = "watch.queue.size";
+  public static final String WATCH_OVERFLOW = "watch.overflow";
+  public static final String WATCH_BLOCK_TIMEOUT = "watch.block.timeout";
   public static final String COMPACTION_DELAY = "compaction.delay";
   public static final String COMPACTION_INTERVAL = "compaction.interval";
+  public static final String COMPACTION_THREADS = "compaction.threads";
+  public static final String COMPACTION_IO_BUDGET = "compaction.io.budget";
+  public static final String COMPACTION_MODE = "compaction.mode";
+  public static final String GROUP_COMMIT_MAX_BATCH = "group.commit.max.batch";
+  public static final String GROUP_COMMIT_MAX_WAIT = "group.commit.max.wait";
+  public static final String DURABILITY_DEFAULT = "durability.default";
+  public static final String DURABILITY_NAMESPACES = "durability.namespaces";
+  public static final String DURABILITY_WAL_SYNC_INTERVAL = "durability.wal.sync.interval";
+  public static final String DURABILITY_FLUSH_INTERVAL = "durability.flush.interval";
+  public static final String STORAGE_CACHE_SIZE = "storage.cache.size";
+  public static final String STORAGE_CACHE_MAX_TAIL = "storage.cache.max.tail";
+  public static final String ROCKSDB_BLOCK_CACHE_SIZE = "rocksdb.block.cache.size";
+  public static final String ROCKSDB_BLOCK_SIZE = "rocksdb.block.size";
+  public static final String ROCKSDB_BLOOM_BITS_PER_KEY = "rocksdb.bloom.bits.per.key";
+  public static final String ROCKSDB_COMPRESSION_PER_LEVEL = "rocksdb.compression.per.level";
+  public static final String ROCKSDB_BOTTOMMOST_COMPRESSION = "rocksdb.compression.bottommost";
+  public static final String ROCKSDB_MAX_BACKGROUND_JOBS = "rocksdb.max.background.jobs";
+  public static final String ROCKSDB_BYTES_PER_SYNC = "rocksdb.bytes.per.sync";
+  public static final String ROCKSDB_RATE_LIMIT = "rocksdb.rate.limit";
 
   //Environment Variable
   private static final String DALV_CONFIG = "DALV_CONFIG";
@@ -62,11 +90,40 @@ public final class DalvConfig {
     config.put(CLIENT_PORT, 7472);
     config.put(JWT_SIGN, "havijfarangichekhoobehavijfarangichekhoobehavijfarangichekhoobe");
     config.put(LOCK_TIMEOUT, 20);
-    config.put(LOCK_SIZE_THRESHOLD, 200);
+    config.put(LOCK_STRIPES, 1024);
+    config.put(LOCK_QUEUE_DEPTH, 64); //requests of a user waiting for its lock
+    config.put(LOCK_DEADLINE_MARGIN, 50); //milliseconds of the deadline kept to run the request and respond
+    config.put(LOCK_GRANT_THREADS, Runtime.getRuntime().availableProcessors()); //run the requests granted a lock
+    config.put(EXECUTION_MODE, "lock"); //or mailbox
+    config.put(MAILBOX_THREADS, Runtime.getRuntime().availableProcessors());
+    //run the requests holding a user's lock, more than the cores since they wait for the WAL syncs
+    config.put(STORAGE_THREADS, Runtime.getRuntime().availableProcessors() * 4);
     config.put(BACKEND_PORT, 7470);
     config.put(WATCHER_THREAD_NUM, 8);
+    config.put(WATCH_QUEUE_SIZE, 1024); //responses waiting for a slow subscriber
+    config.put(WATCH_OVERFLOW, "DISCONNECT"); //or BLOCK, DROP_OLDEST, COALESCE
+    config.put(WATCH_BLOCK_TIMEOUT, 1000L); //milliseconds a BLOCK subscriber may stay past its queue size
     config.put(COMPACTION_DELAY, 10L);
     config.put(COMPACTION_INTERVAL, 10L);
+    config.put(COMPACTION_THREADS, 2);
+    config.put(COMPACTION_IO_BUDGET, 16L * 1024 * 1024); //bytes of log read per second, 0 means unlimited
+    config.put(COMPACTION_MODE, "background"); //or inline
+    config.put(GROUP_COMMIT_MAX_BATCH, 256); //1 disables group commit
+    config.put(GROUP_COMMIT_MAX_WAIT, 0L); //microseconds
+    config.put(DURABILITY_DEFAULT, "GROUP");
+    config.put(DURABILITY_NAMESPACES, ""); //e.g. analytics.=ASYNC_WAL,tmp.=NO_WAL
+    config.put(DURABILITY_WAL_SYNC_INTERVAL, 100L); //milliseconds
+    config.put(DURABILITY_FLUSH_INTERVAL, 1000L); //milliseconds
+    config.put(STORAGE_CACHE_SIZE, 64L * 1024 * 1024); //bytes of decoded users' state, 0 disables the cache
+    config.put(STORAGE_CACHE_MAX_TAIL, 256); //operations after the last snapshot of a user
+    config.put(ROCKSDB_BLOCK_CACHE_SIZE, 256L * 1024 * 1024); //bytes, shared by all the column families
+    config.put(ROCKSDB_BLOCK_SIZE, 4096L); //bytes
+    config.put(ROCKSDB_BLOOM_BITS_PER_KEY, 10); //0 disables the bloom filters
+    config.put(ROCKSDB_COMPRESSION_PER_LEVEL, "none,none,lz4,lz4,lz4,lz4,lz4");
+    config.put(ROCKSDB_BOTTOMMOST_COMPRESSION, "lz4");
+    config.put(ROCKSDB_MAX_BACKGROUND_JOBS, 4);
+    config.put(ROCKSDB_BYTES_PER_SYNC, 1024L * 1024); //bytes
+    config.put(ROCKSDB_RATE_LIMIT, 0L); //bytes per second of flush and compaction writes, 0 means unlimited
   }
 
   private DalvConfig() {
@@ -138,7 +195,10 @@ public final class DalvConfig {
    * @return the configuration value
    */
   public static Integer getInt(String key) {
-    return (Integer) config.get(key);
+    Object val = config.get(key);
+    if (val instanceof String) //loaded from the configuration file
+      return Integer.valueOf(((String) val).trim());
+    return (Integer) val;
   }
 
   /**
@@ -158,7 +218,12 @@ public final class DalvConfig {
    * @return the configuration value
    */
   public static Long getLong(String key) {
-    return (Long) config.get(key);
+    Object val = config.get(key);
+    if (val instanceof String) //loaded from the configuration file
+      return Long.valueOf(((String) val).trim());
+    if (val instanceof Integer)
+      return ((Integer) val).longValue();
+    return (Long) val;
   }
 
   /**
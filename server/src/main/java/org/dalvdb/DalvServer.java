@@ -18,6 +18,8 @@
 package org.dalvdb;
 
 
+import org.dalvdb.lock.UserLockManager;
+import org.dalvdb.service.UserMailboxes;
 import org.dalvdb.service.backend.BackendService;
 import org.dalvdb.watch.InMemoryWatchManager;
 import org.dalvdb.watch.WatchManager;
@@ -29,6 +31,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class contains main method which is the starting point for an instance of a Dalv Server.
@@ -43,6 +50,8 @@ public class DalvServer implements Closeable {
   private final DalvCluster cluster;
   private final ClientService clientService;
   private final BackendService backendService;
+  private final UserMailboxes mailboxes;
+  private final ExecutorService storageWorkers;
 
   private DalvServer() {
     this.storageService = new RocksStorageService();
@@ -52,8 +61,23 @@ public class DalvServer implements Closeable {
       this.cluster = null;
     //TODO should be changed to handle clients watches also
     WatchManager watchManager = new InMemoryWatchManager();
-    this.clientService = new ClientService(this.storageService, watchManager);
-    this.backendService = new BackendService(this.storageService, watchManager);
+    if ("mailbox".equalsIgnoreCase(DalvConfig.getStr(DalvConfig.EXECUTION_MODE))) {
+      this.mailboxes = new UserMailboxes(this.storageService);
+      this.storageWorkers = null;
+    } else {
+      this.mailboxes = null;
+      int storageThreads = DalvConfig.getInt(DalvConfig.STORAGE_THREADS);
+      ThreadFactory daemonThreads = r -> {
+        Thread thread = new Thread(r, "storage-worker");
+        thread.setDaemon(true);
+        return thread;
+      };
+      //a request granted its lock during the shutdown still runs on the granting thread, so it releases the lock
+      this.storageWorkers = new ThreadPoolExecutor(storageThreads, storageThreads, 0, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<>(), daemonThreads, (r, executor) -> r.run());
+    }
+    this.clientService = new ClientService(this.storageService, watchManager, mailboxes, storageWorkers);
+    this.backendService = new BackendService(this.storageService, watchManager, mailboxes, storageWorkers);
     logger.info("Dalv server started up");
   }
 
@@ -105,8 +129,19 @@ public class DalvServer implements Closeable {
   public void close() throws IOException {
     this.clientService.close();
     this.backendService.close();
+    if (mailboxes != null)
+      this.mailboxes.close();
+    if (storageWorkers != null) {
+      storageWorkers.shutdown();
+      try {
+        storageWorkers.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
     if (cluster != null)
       this.cluster.close();
     this.storageService.close();
+    UserLockManager.getInstance().close();
   }
 }
@@ -20,32 +20,87 @@ package org.dalvdb.lock;
 import com.google.common.annotations.VisibleForTesting;
 import org.dalvdb.DalvConfig;
 
-import java.util.Comparator;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
- * Singleton class that its single instance keep a list of {@link ReadWriteLock} for users. each user has a single lock
- * It acts as a LRU cache, and delete locks once the number of locks reach the threshold, however, it does not delete
- * any currently held lock.
+ * Singleton class that its single instance keep the read-write locks of the users. Users are hashed onto a fixed array
+ * of {@link DalvConfig#LOCK_STRIPES} {@link StampedLock}s, so finding the lock of a user neither allocates nor blocks,
+ * and any number of users can be locked at the same time. Users hashed onto the same stripe share its lock.
+ * <p>
+ * The locks are not reentrant, and since two users may share a stripe a thread must not hold the locks of two users at
+ * the same time. A lock may be released by a thread other than the one which acquired it.
+ * <p>
+ * The locks can also be acquired asynchronously, then the caller is not parked while waiting: the request waits in a
+ * FIFO queue of its stripe and the lock is handed over to it on a release. The continuation of a request granted
+ * right away runs on the calling thread, others run on a pool of {@link DalvConfig#LOCK_GRANT_THREADS}, so the requests
+ * granted at once are bounded by the pool instead of each taking a new thread. The pool only completes the requests,
+ * callers doing IO under the lock should continue on their own executor. At most
+ * {@link DalvConfig#LOCK_QUEUE_DEPTH} requests of a user wait at the same time, the others fail right away so a hot
+ * user sheds the load instead of queueing requests which would time out anyway.
  */
-public class UserLockManager {
+public class UserLockManager implements Closeable {
   private static UserLockManager instance;
-  private final Map<String, LockEntry> locks = new ConcurrentHashMap<>();
-  private final ReadWriteLock pruningLock = new ReentrantReadWriteLock();
-  private final int threshold;
+  private static final ThreadFactory daemonThreads = r -> {
+    Thread thread = new Thread(r, "user-lock");
+    thread.setDaemon(true);
+    return thread;
+  };
+  private final Stripe[] stripes;
+  private final int mask;
+  private final int maxDepth;
+  private final ExecutorService granted;
+  private final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, daemonThreads);
 
   @VisibleForTesting
-  UserLockManager(int threshold) {
-    this.threshold = threshold;
+  UserLockManager(int stripes, int maxDepth, int grantThreads) {
+    int size = 1;
+    while (size < stripes)
+      size <<= 1;
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; i++)
+      this.stripes[i] = new Stripe();
+    this.mask = size - 1;
+    this.maxDepth = maxDepth;
+    this.granted = Executors.newFixedThreadPool(grantThreads, daemonThreads);
+    this.timeouts.setRemoveOnCancelPolicy(true);
+  }
+
+  private static final class Stripe {
+    private final StampedLock lock = new StampedLock();
+    //guarded by the stripe's monitor
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    //number of the waiters of each user, guarded by the stripe's monitor
+    private final Map<String, Integer> depths = new HashMap<>();
+
+    private void dequeued(Waiter waiter) {
+      depths.computeIfPresent(waiter.userId, (k, depth) -> depth == 1 ? null : depth - 1);
+    }
+  }
+
+  private static final class Waiter {
+    private final String userId;
+    private final boolean write;
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+    private ScheduledFuture<?> timeout;
+
+    private Waiter(String userId, boolean write) {
+      this.userId = userId;
+      this.write = write;
+    }
   }
 
   /**
@@ -55,16 +110,14 @@ public class UserLockManager {
    */
   public static synchronized UserLockManager getInstance() {
     if (instance == null) {
-      instance = new UserLockManager(DalvConfig.getInt(DalvConfig.LOCK_SIZE_THRESHOLD));
+      instance = new UserLockManager(DalvConfig.getInt(DalvConfig.LOCK_STRIPES),
+          DalvConfig.getInt(DalvConfig.LOCK_QUEUE_DEPTH), DalvConfig.getInt(DalvConfig.LOCK_GRANT_THREADS));
     }
     return instance;
   }
 
   /**
    * Try to acquire the user read lock within the timeout provided.
-   * <p>
-   * Note that in the case of lockManager has reached the threshold and prune was not possible the method return false
-   * immediately
    *
    * @param userId  the user identification
    * @param timeout the time to wait until lock will be available
@@ -72,22 +125,11 @@ public class UserLockManager {
    * @throws InterruptedException in the case of interruption while waiting to acquire lock
    */
   public boolean tryReadLock(String userId, long timeout) throws InterruptedException {
-    LockEntry lockEntry = getLock(userId);
-    if (lockEntry != null && lockEntry.lock.readLock().tryLock(timeout, TimeUnit.MILLISECONDS)) {
-      pruningLock.readLock().lock();
-      lockEntry.numberOfHold.incrementAndGet();
-      lockEntry.lastUsedTimestamp = System.currentTimeMillis();
-      pruningLock.readLock().unlock();
-      return true;
-    }
-    return false;
+    return stripe(userId).lock.asReadLock().tryLock(timeout, TimeUnit.MILLISECONDS);
   }
 
   /**
    * Try to acquire the user write lock within the timeout provided.
-   * <p>
-   * Note that in the case of lockManager has reached the threshold and prune was not possible the method return false
-   * immediately
    *
    * @param userId  the user identification
    * @param timeout the time to wait until lock will be available
@@ -95,15 +137,40 @@ public class UserLockManager {
    * @throws InterruptedException in the case of interruption while waiting to acquire lock
    */
   public boolean tryWriteLock(String userId, long timeout) throws InterruptedException {
-    LockEntry lockEntry = getLock(userId);
-    if (lockEntry != null && lockEntry.lock.writeLock().tryLock(timeout, TimeUnit.MILLISECONDS)) {
-      pruningLock.readLock().lock();
-      lockEntry.numberOfHold.incrementAndGet();
-      lockEntry.lastUsedTimestamp = System.currentTimeMillis();
-      pruningLock.readLock().unlock();
-      return true;
-    }
-    return false;
+    return stripe(userId).lock.asWriteLock().tryLock(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Acquire the user write lock, waiting as long as it is held by others.
+   *
+   * @param userId the user identification
+   */
+  public void writeLock(String userId) {
+    stripe(userId).lock.asWriteLock().lock();
+  }
+
+  /**
+   * Try to acquire the user read lock within the timeout provided, without blocking the calling thread.
+   *
+   * @param userId  the user identification
+   * @param timeout the time to wait until lock will be available
+   * @return completed with true once the lock is acquired, or with false when the timeout passes or too many requests
+   * of the user are already waiting
+   */
+  public CompletableFuture<Boolean> tryReadLockAsync(String userId, long timeout) {
+    return acquireAsync(userId, false, timeout);
+  }
+
+  /**
+   * Try to acquire the user write lock within the timeout provided, without blocking the calling thread.
+   *
+   * @param userId  the user identification
+   * @param timeout the time to wait until lock will be available
+   * @return completed with true once the lock is acquired, or with false when the timeout passes or too many requests
+   * of the user are already waiting
+   */
+  public CompletableFuture<Boolean> tryWriteLockAsync(String userId, long timeout) {
+    return acquireAsync(userId, true, timeout);
   }
 
   /**
@@ -112,9 +179,9 @@ public class UserLockManager {
    * @param userId the user identification
    */
   public void releaseReadLock(String userId) {
-    LockEntry lockEntry = getLock(userId);
-    Objects.requireNonNull(lockEntry).lock.readLock().unlock();
-    lockEntry.numberOfHold.decrementAndGet();
+    Stripe stripe = stripe(userId);
+    stripe.lock.asReadLock().unlock();
+    grant(stripe);
   }
 
   /**
@@ -123,43 +190,100 @@ public class UserLockManager {
    * @param userId the user identification
    */
   public void releaseWriteLock(String userId) {
-    LockEntry lockEntry = getLock(userId);
-    Objects.requireNonNull(lockEntry).lock.writeLock().unlock();
-    lockEntry.numberOfHold.decrementAndGet();
-  }
-
-  private LockEntry getLock(String userId) {
-    return locks.computeIfAbsent(userId, (k) -> {
-      if (locks.size() == threshold && !prune())
-        return null;
-      return new LockEntry();
-    });
-  }
-
-  private boolean prune() {
-    Lock lock = pruningLock.writeLock();
-    lock.lock();
-    AtomicBoolean success = new AtomicBoolean(false);
-    Optional<Map.Entry<String, LockEntry>> removeCandidate = locks.entrySet().stream()
-        .filter(e -> e.getValue().numberOfHold.intValue() == 0)
-        .min(Comparator.comparing(e -> e.getValue().lastUsedTimestamp));
-    removeCandidate.map(Map.Entry::getKey).ifPresent(key -> {
-      locks.remove(key);
-      success.set(true);
-    });
-    lock.unlock();
-    return success.get();
-  }
-
-  private static class LockEntry {
-    private final ReadWriteLock lock;
-    private Long lastUsedTimestamp;
-    private final AtomicInteger numberOfHold;
-
-    public LockEntry() {
-      this.lastUsedTimestamp = System.currentTimeMillis();
-      numberOfHold = new AtomicInteger(0);
-      this.lock = new ReentrantReadWriteLock();
+    Stripe stripe = stripe(userId);
+    stripe.lock.asWriteLock().unlock();
+    grant(stripe);
+  }
+
+  private CompletableFuture<Boolean> acquireAsync(String userId, boolean write, long timeout) {
+    Stripe stripe = stripe(userId);
+    Waiter waiter = new Waiter(userId, write);
+    synchronized (stripe) {
+      //the queued requests go first, a release between the attempt and queueing waits for the monitor to grant it
+      if (stripe.waiters.isEmpty() && tryAcquire(stripe, write)) {
+        waiter.future.complete(true);
+        return waiter.future;
+      }
+      if (stripe.depths.getOrDefault(userId, 0) >= maxDepth) {
+        waiter.future.complete(false);
+        return waiter.future;
+      }
+      stripe.depths.merge(userId, 1, Integer::sum);
+      stripe.waiters.add(waiter);
+      waiter.timeout = timeouts.schedule(() -> expire(stripe, waiter), timeout, TimeUnit.MILLISECONDS);
     }
+    return waiter.future;
+  }
+
+  private void expire(Stripe stripe, Waiter waiter) {
+    synchronized (stripe) {
+      if (!stripe.waiters.remove(waiter)) return;
+      stripe.dequeued(waiter);
+    }
+    waiter.future.complete(false);
+    //a writer at the head may have been holding back the readers behind it
+    grant(stripe);
+  }
+
+  /**
+   * Hand the lock over to the requests at the head of the stripe's queue as long as it can be acquired
+   */
+  private void grant(Stripe stripe) {
+    List<Waiter> acquired = new ArrayList<>();
+    synchronized (stripe) {
+      Waiter waiter;
+      while ((waiter = stripe.waiters.peek()) != null && tryAcquire(stripe, waiter.write)) {
+        stripe.waiters.poll();
+        stripe.dequeued(waiter);
+        waiter.timeout.cancel(false);
+        acquired.add(waiter);
+      }
+    }
+    //not run on the releasing thread, which may be in the middle of another request
+    for (Waiter waiter : acquired) {
+      try {
+        granted.execute(() -> waiter.future.complete(true));
+      } catch (RejectedExecutionException e) {
+        //the manager is closed, the lock is handed back instead of being left to a request nobody completes
+        if (waiter.write)
+          releaseWriteLock(waiter.userId);
+        else
+          releaseReadLock(waiter.userId);
+        waiter.future.complete(false);
+      }
+    }
+  }
+
+  /**
+   * Stop the pools of the lock manager, the requests still waiting for a lock fail. The next
+   * {@link #getInstance()} creates a new instance if this one was the singleton.
+   */
+  @Override
+  public void close() {
+    synchronized (UserLockManager.class) {
+      if (instance == this)
+        instance = null;
+    }
+    List<Waiter> waiting = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        waiting.addAll(stripe.waiters);
+        stripe.waiters.clear();
+        stripe.depths.clear();
+      }
+    }
+    timeouts.shutdownNow();
+    granted.shutdown();
+    for (Waiter waiter : waiting)
+      waiter.future.complete(false);
+  }
+
+  private static boolean tryAcquire(Stripe stripe, boolean write) {
+    return (write ? stripe.lock.tryWriteLock() : stripe.lock.tryReadLock()) != 0;
+  }
+
+  private Stripe stripe(String userId) {
+    int h = userId.hashCode();
+    return stripes[(h ^ (h >>> 16)) & mask];
   }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.service;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import org.dalvdb.DalvConfig;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time the requests may wait for a user's lock, bounded by the deadline the client set on the call so a request is
+ * only rejected when its client would not wait for the response anymore.
+ * <p>
+ * {@link DalvConfig#LOCK_DEADLINE_MARGIN} of the deadline is kept to run the request and send the response, and a
+ * request which got the lock must still check {@link Context#isCancelled()} of its call, as the client may have
+ * given up meanwhile.
+ */
+public final class Deadlines {
+  private Deadlines() {
+  }
+
+  /**
+   * Must be called on the thread handling the gRPC call
+   *
+   * @return the milliseconds left until the deadline of the current call minus the margin, or
+   * {@link DalvConfig#LOCK_TIMEOUT} if it has no deadline
+   */
+  public static long lockWait() {
+    Deadline deadline = Context.current().getDeadline();
+    if (deadline == null)
+      return DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT);
+    long margin = DalvConfig.getInt(DalvConfig.LOCK_DEADLINE_MARGIN);
+    return Math.max(0, deadline.timeRemaining(TimeUnit.MILLISECONDS) - margin);
+  }
+}
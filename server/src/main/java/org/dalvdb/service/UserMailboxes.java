@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.service;
+
+import dalv.common.Common;
+import org.dalvdb.DalvConfig;
+import org.dalvdb.lock.UserLockManager;
+import org.dalvdb.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the writes of the users when {@link DalvConfig#EXECUTION_MODE} is mailbox, instead of each request waiting for
+ * the user's write lock on its own thread.
+ * <p>
+ * Every user with pending tasks has a mailbox, which is drained by one worker of a pool of
+ * {@link DalvConfig#MAILBOX_THREADS} at a time, so the tasks of a user run one after another in the order they were
+ * submitted and the submitting thread gets a future instead of blocking. A worker takes everything queued in the
+ * mailbox at once and the operations of consecutive {@link #submit(String, Common.Operation, Common.Durability)} calls
+ * with the same durability are added in a single write batch. Then the mailbox goes back to the end of the pool's
+ * queue, so a busy user does not keep a worker from the others.
+ * <p>
+ * The worker holds the user's write lock while running the tasks, so the compaction and the readers which still use
+ * the {@link UserLockManager} are excluded as before.
+ */
+public class UserMailboxes implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(UserMailboxes.class);
+  private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+  private final ExecutorService workers = Executors.newWorkStealingPool(DalvConfig.getInt(DalvConfig.MAILBOX_THREADS));
+  private final StorageService storage;
+  private final UserLockManager userLockManager;
+
+  public UserMailboxes(StorageService storage) {
+    this.storage = storage;
+    this.userLockManager = UserLockManager.getInstance();
+  }
+
+  /**
+   * A task waiting in a mailbox, either an operation to add or an arbitrary action
+   */
+  private static final class Task {
+    private final Common.Operation op;
+    private final Common.Durability durability;
+    private final Callable<?> action;
+    private final Runnable persisted;
+    private final CompletableFuture<Object> future = new CompletableFuture<>();
+    private Object result;
+    private Throwable error;
+
+    private Task(Common.Operation op, Common.Durability durability, Callable<?> action, Runnable persisted) {
+      this.op = op;
+      this.durability = durability;
+      this.action = action;
+      this.persisted = persisted;
+    }
+
+    private void complete() {
+      if (error == null)
+        future.complete(result);
+      else
+        future.completeExceptionally(error);
+    }
+  }
+
+  private final class Mailbox implements Runnable {
+    private final String userId;
+    //guarded by the map's lock on the user, see submit and take
+    private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+
+    private Mailbox(String userId) {
+      this.userId = userId;
+    }
+
+    @Override
+    public void run() {
+      List<Task> batch;
+      while (!(batch = take(this)).isEmpty()) {
+        userLockManager.writeLock(userId);
+        try {
+          execute(userId, batch);
+        } finally {
+          userLockManager.releaseWriteLock(userId);
+        }
+        //completed out of the lock, so the callbacks of the futures do not hold it
+        for (Task task : batch)
+          task.complete();
+        try {
+          workers.execute(this);
+          return;
+        } catch (RejectedExecutionException e) {
+          //closing, the tasks queued so far are still run on this thread until the mailbox is empty
+        }
+      }
+    }
+  }
+
+  /**
+   * Queue an operation to be added to the user's log
+   *
+   * @param userId     the user identification
+   * @param op         the operation to add
+   * @param durability how the operation must be persisted, DEFAULT to decide based on the configuration
+   * @return completed when the operation is persisted
+   */
+  public CompletableFuture<Void> submit(String userId, Common.Operation op, Common.Durability durability) {
+    return submit(userId, op, durability, null);
+  }
+
+  /**
+   * Queue an operation to be added to the user's log
+   *
+   * @param persisted run once the operation is persisted, still in the order of the user's writes, or null
+   * @return completed when the operation is persisted
+   * @see #submit(String, Common.Operation, Common.Durability)
+   */
+  public CompletableFuture<Void> submit(String userId, Common.Operation op, Common.Durability durability,
+                                        Runnable persisted) {
+    return enqueue(userId, new Task(op, durability, null, persisted)).thenApply(ignored -> null);
+  }
+
+  /**
+   * Queue an action to run after the tasks already queued for the user, and before the ones queued later
+   *
+   * @param userId the user identification
+   * @param action the action, it may use the storage as if it had the user's write lock
+   * @return completed with the result of the action
+   */
+  @SuppressWarnings("unchecked")
+  public <T> CompletableFuture<T> submit(String userId, Callable<T> action) {
+    return (CompletableFuture<T>) enqueue(userId, new Task(null, null, action, null));
+  }
+
+  private CompletableFuture<Object> enqueue(String userId, Task task) {
+    Mailbox[] created = {null};
+    mailboxes.compute(userId, (k, mailbox) -> {
+      if (mailbox == null)
+        mailbox = created[0] = new Mailbox(k);
+      mailbox.tasks.add(task);
+      return mailbox;
+    });
+    if (created[0] != null) {
+      try {
+        workers.execute(created[0]);
+      } catch (RejectedExecutionException e) {
+        for (Task rejected : take(created[0]))
+          rejected.future.completeExceptionally(e);
+      }
+    }
+    return task.future;
+  }
+
+  /**
+   * @return the queued tasks of the mailbox, the mailbox is removed if there is none
+   */
+  private List<Task> take(Mailbox mailbox) {
+    List<Task> batch = new ArrayList<>();
+    mailboxes.compute(mailbox.userId, (k, current) -> {
+      batch.addAll(current.tasks);
+      current.tasks.clear();
+      return batch.isEmpty() ? null : current;
+    });
+    return batch;
+  }
+
+  private void execute(String userId, List<Task> batch) {
+    int i = 0;
+    while (i < batch.size()) {
+      Task task = batch.get(i);
+      if (task.action != null) {
+        try {
+          task.result = task.action.call();
+        } catch (Exception e) {
+          task.error = e;
+        }
+        i++;
+        continue;
+      }
+      int end = i + 1;
+      while (end < batch.size() && batch.get(end).action == null && batch.get(end).durability == task.durability)
+        end++;
+      List<Task> writes = batch.subList(i, end);
+      List<Common.Operation> ops = new ArrayList<>(writes.size());
+      for (Task write : writes)
+        ops.add(write.op);
+      try {
+        storage.addOperations(userId, ops, task.durability);
+      } catch (RuntimeException e) {
+        logger.error("adding {} operations of {} failed", ops.size(), userId, e);
+        for (Task write : writes)
+          write.error = e;
+      }
+      for (Task write : writes) {
+        if (write.error != null || write.persisted == null) continue;
+        try {
+          write.persisted.run();
+        } catch (RuntimeException e) {
+          logger.error("the callback of a write of {} failed", userId, e);
+        }
+      }
+      i = end;
+    }
+  }
+
+  @Override
+  public void close() {
+    workers.shutdown();
+    try {
+      if (!workers.awaitTermination(30, TimeUnit.SECONDS))
+        logger.warn("some of the queued writes were not finished");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -20,6 +20,7 @@ package org.dalvdb.service.backend;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import org.dalvdb.DalvConfig;
+import org.dalvdb.service.UserMailboxes;
 import org.dalvdb.storage.StorageService;
 import org.dalvdb.watch.WatchManager;
 import org.slf4j.Logger;
@@ -27,6 +28,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 public class BackendService implements Closeable {
@@ -34,11 +36,12 @@ public class BackendService implements Closeable {
   private final Server server;
   private final WatchManager watchManager;
 
-  public BackendService(StorageService storageService, WatchManager watchManager) {
+  public BackendService(StorageService storageService, WatchManager watchManager, UserMailboxes mailboxes,
+                        Executor storageWorkers) {
     this.watchManager = watchManager;
     final int port = DalvConfig.getInt(DalvConfig.BACKEND_PORT);
     server = ServerBuilder.forPort(port)
-        .addService(new BackendServiceImpl(storageService, watchManager)).build();
+        .addService(new BackendServiceImpl(storageService, watchManager, mailboxes, storageWorkers)).build();
     try {
       server.start();
     } catch (IOException e) {
@@ -19,26 +19,41 @@ package org.dalvdb.service.backend;
 
 import com.google.protobuf.ByteString;
 import dalv.common.Common;
+import io.grpc.Context;
 import io.grpc.stub.StreamObserver;
-import org.dalvdb.DalvConfig;
 import org.dalvdb.exception.InternalServerException;
 import org.dalvdb.lock.UserLockManager;
 import org.dalvdb.proto.BackendProto;
 import org.dalvdb.proto.BackendServerGrpc;
+import org.dalvdb.service.Deadlines;
+import org.dalvdb.service.UserMailboxes;
 import org.dalvdb.storage.StorageService;
 import org.dalvdb.watch.WatchManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
 public class BackendServiceImpl extends BackendServerGrpc.BackendServerImplBase {
   private static final Logger logger = LoggerFactory.getLogger(BackendServiceImpl.class);
   private final StorageService storageService;
   private final UserLockManager userLockManager;
   private final WatchManager watchManager;
+  private final UserMailboxes mailboxes;
+  private final Executor storageWorkers;
 
-  public BackendServiceImpl(StorageService storageService, WatchManager watchManager) {
+  /**
+   * @param mailboxes      where the writes are queued, or null to run them with the user's write lock
+   * @param storageWorkers where the writes run once the user's write lock is acquired, unused with the mailboxes
+   */
+  public BackendServiceImpl(StorageService storageService, WatchManager watchManager, UserMailboxes mailboxes,
+                            Executor storageWorkers) {
     this.storageService = storageService;
     this.watchManager = watchManager;
+    this.mailboxes = mailboxes;
+    this.storageWorkers = storageWorkers;
     this.userLockManager = UserLockManager.getInstance();
   }
 
@@ -47,21 +62,15 @@ public class BackendServiceImpl extends BackendServerGrpc.BackendServerImplBase
     logger.debug("GET command received: userId:{} key:{}", request.getUserId(), request.getKey());
     BackendProto.GetResponse response;
     try {
-      if (userLockManager.tryReadLock(request.getUserId(), DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-        try {
-          ByteString value = storageService.getValue(request.getUserId(), request.getKey());
-          response = BackendProto.GetResponse.newBuilder()
-              .setRepType(value == null ? Common.RepType.NOK : Common.RepType.OK)
-              .setValue(value)
-              .build();
-        } finally {
-          userLockManager.releaseReadLock(request.getUserId());
-        }
-      } else
-        response = BackendProto.GetResponse.newBuilder().setRepType(Common.RepType.NOK).build();
+      //a single read of the state is consistent without the user's lock, so it never waits for the writers
+      ByteString value = storageService.getValue(request.getUserId(), request.getKey());
+      response = BackendProto.GetResponse.newBuilder()
+          .setRepType(value == null ? Common.RepType.NOK : Common.RepType.OK)
+          .setValue(value)
+          .build();
       responseObserver.onNext(response);
       responseObserver.onCompleted();
-    } catch (InternalServerException | InterruptedException e) {
+    } catch (InternalServerException e) {
       logger.error(e.getMessage(), e);
       responseObserver.onError(e);
     }
@@ -69,133 +78,99 @@ public class BackendServiceImpl extends BackendServerGrpc.BackendServerImplBase
 
   @Override
   public void put(BackendProto.PutRequest request, StreamObserver<BackendProto.PutResponse> responseObserver) {
-    try {
-      logger.debug("PUT command received: userId:{} key:{}", request.getUserId(), request.getKey());
-      BackendProto.PutResponse response;
-      Common.Operation op = null;
-      if (userLockManager.tryWriteLock(request.getUserId(), DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-        try {
-          op = Common.Operation.newBuilder()
-              .setKey(request.getKey())
-              .setType(Common.OpType.PUT)
-              .setVal(request.getValue())
-              .build();
-          storageService.addOperation(request.getUserId(), op);
-          response = BackendProto.PutResponse.newBuilder().setRepType(Common.RepType.OK).build();
-        } finally {
-          userLockManager.releaseWriteLock(request.getUserId());
-        }
-      } else {
-        response = BackendProto.PutResponse.newBuilder().setRepType(Common.RepType.NOK).build();
-      }
-      responseObserver.onNext(response);
-      responseObserver.onCompleted();
-      logger.debug("PUT command processed: userId:{} key:{}", request.getUserId(), request.getKey());
-      if (response.getRepType() == Common.RepType.OK)
-        watchManager.notifyChange(request.getUserId(), op);
-    } catch (InternalServerException | InterruptedException e) {
-      logger.error(e.getMessage(), e);
-      responseObserver.onError(e);
-    }
+    logger.debug("PUT command received: userId:{} key:{}", request.getUserId(), request.getKey());
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey(request.getKey())
+        .setType(Common.OpType.PUT)
+        .setVal(request.getValue())
+        .build();
+    write(request.getUserId(), op, request.getDurability(),
+        BackendProto.PutResponse.newBuilder().setRepType(Common.RepType.OK).build(),
+        BackendProto.PutResponse.newBuilder().setRepType(Common.RepType.NOK).build(), responseObserver);
   }
 
   @Override
   public void del(BackendProto.DelRequest request, StreamObserver<BackendProto.DelResponse> responseObserver) {
-    try {
-      logger.debug("DEL command received: userId:{} key:{}", request.getUserId(), request.getKey());
-      BackendProto.DelResponse response;
-      Common.Operation op = null;
-      if (userLockManager.tryWriteLock(request.getUserId(), DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-        try {
-          op = Common.Operation.newBuilder()
-              .setKey(request.getKey())
-              .setType(Common.OpType.DEL)
-              .build();
-          storageService.addOperation(request.getUserId(), op);
-          response = BackendProto.DelResponse.newBuilder().setRepType(Common.RepType.OK).build();
-        } finally {
-          userLockManager.releaseWriteLock(request.getUserId());
-        }
-      } else {
-        response = BackendProto.DelResponse.newBuilder().setRepType(Common.RepType.NOK).build();
-      }
-      responseObserver.onNext(response);
-      responseObserver.onCompleted();
-      if (response.getRepType() == Common.RepType.OK)
-        watchManager.notifyChange(request.getUserId(), op);
-    } catch (InternalServerException | InterruptedException e) {
-      logger.error(e.getMessage(), e);
-      responseObserver.onError(e);
-    }
+    logger.debug("DEL command received: userId:{} key:{}", request.getUserId(), request.getKey());
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey(request.getKey())
+        .setType(Common.OpType.DEL)
+        .build();
+    write(request.getUserId(), op, Common.Durability.DEFAULT,
+        BackendProto.DelResponse.newBuilder().setRepType(Common.RepType.OK).build(),
+        BackendProto.DelResponse.newBuilder().setRepType(Common.RepType.NOK).build(), responseObserver);
   }
 
   @Override
   public void addToList(BackendProto.AddToListRequest request, StreamObserver<BackendProto.AddToListResponse> responseObserver) {
     logger.debug("ADD_TO_LIST command received: userId:{} listKey:{}", request.getUserId(), request.getListKey());
-    BackendProto.AddToListResponse response;
-    Common.Operation op = null;
-    try {
-      if (userLockManager.tryWriteLock(request.getUserId(), DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-        try {
-          op = Common.Operation.newBuilder()
-              .setKey(request.getListKey())
-              .setType(Common.OpType.ADD_TO_LIST)
-              .setVal(request.getValue())
-              .build();
-          storageService.addOperation(request.getUserId(), op);
-          response = BackendProto.AddToListResponse.newBuilder().setRepType(Common.RepType.OK).build();
-        } finally {
-          userLockManager.releaseWriteLock(request.getUserId());
-        }
-      } else {
-        response = BackendProto.AddToListResponse.newBuilder().setRepType(Common.RepType.NOK).build();
-      }
-    responseObserver.onNext(response);
-    responseObserver.onCompleted();
-    if (response.getRepType() == Common.RepType.OK)
-      watchManager.notifyChange(request.getUserId(), op);
-    } catch (InternalServerException | InterruptedException e) {
-      logger.error(e.getMessage(), e);
-      responseObserver.onError(e);
-    }
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey(request.getListKey())
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setVal(request.getValue())
+        .build();
+    write(request.getUserId(), op, Common.Durability.DEFAULT,
+        BackendProto.AddToListResponse.newBuilder().setRepType(Common.RepType.OK).build(),
+        BackendProto.AddToListResponse.newBuilder().setRepType(Common.RepType.NOK).build(), responseObserver);
   }
 
   @Override
   public void removeFromList(BackendProto.RemoveFromListRequest request, StreamObserver<BackendProto.RemoveFromListResponse> responseObserver) {
-    try {
-      logger.debug("REMOVE_FROM_LIST command received: userId:{} listKey:{}", request.getUserId(), request.getListKey());
-      BackendProto.RemoveFromListResponse response;
-      Common.Operation op = null;
-      if (userLockManager.tryWriteLock(request.getUserId(), DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-        try {
+    logger.debug("REMOVE_FROM_LIST command received: userId:{} listKey:{}", request.getUserId(), request.getListKey());
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey(request.getListKey())
+        .setType(Common.OpType.REMOVE_FROM_LIST)
+        .setVal(request.getValue())
+        .build();
+    write(request.getUserId(), op, Common.Durability.DEFAULT,
+        BackendProto.RemoveFromListResponse.newBuilder().setRepType(Common.RepType.OK).build(),
+        BackendProto.RemoveFromListResponse.newBuilder().setRepType(Common.RepType.NOK).build(), responseObserver);
+  }
 
-          op = Common.Operation.newBuilder()
-              .setKey(request.getListKey())
-              .setType(Common.OpType.REMOVE_FROM_LIST)
-              .setVal(request.getValue())
-              .build();
-          storageService.addOperation(request.getUserId(), op);
-          response = BackendProto.RemoveFromListResponse.newBuilder().setRepType(Common.RepType.OK).build();
-        } finally {
-          userLockManager.releaseWriteLock(request.getUserId());
-        }
-      } else {
-        response = BackendProto.RemoveFromListResponse.newBuilder().setRepType(Common.RepType.NOK).build();
+  /**
+   * Add the operation in the user's mailbox or once the user's write lock is acquired, the calling thread does not
+   * wait for either and the response is sent when the operation is persisted, the watchers are notified in the order
+   * of the user's writes
+   */
+  private <T> void write(String userId, Common.Operation op, Common.Durability durability, T ok, T nok,
+                         StreamObserver<T> responseObserver) {
+    CompletableFuture<Boolean> written;
+    if (mailboxes != null) {
+      written = mailboxes.submit(userId, op, durability, () -> watchManager.notifyChange(userId, op))
+          .thenApply(ignored -> true);
+    } else {
+      Context context = Context.current();
+      written = userLockManager.tryWriteLockAsync(userId, Deadlines.lockWait())
+          .thenApplyAsync(acquired -> {
+            if (!acquired) return false;
+            try {
+              if (context.isCancelled()) return false;
+              storageService.addOperation(userId, op, durability);
+              //notified before the lock is released, so the watchers receive the writes in the order they are committed
+              watchManager.notifyChange(userId, op);
+              return true;
+            } finally {
+              userLockManager.releaseWriteLock(userId);
+            }
+          }, storageWorkers);
+    }
+    written.whenComplete((persisted, e) -> {
+      if (e != null) {
+        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+        logger.error(cause.getMessage(), cause);
+        responseObserver.onError(cause);
+        return;
       }
-      responseObserver.onNext(response);
+      responseObserver.onNext(persisted ? ok : nok);
       responseObserver.onCompleted();
-      if (response.getRepType() == Common.RepType.OK)
-        watchManager.notifyChange(request.getUserId(), op);
-    } catch (InternalServerException | InterruptedException e) {
-      logger.error(e.getMessage(), e);
-      responseObserver.onError(e);
-    }
+    });
   }
 
   @Override
   public void watch(BackendProto.WatchRequest request, StreamObserver<BackendProto.WatchResponse> responseObserver) {
     logger.debug("BACKEND WATCH command received on key:{}", request.getKey());
-    watchManager.addBackendWatch(request.getKey(), responseObserver);
+    watchManager.addBackendWatch(request.getKey(), request.getBatched(), request.getLatestOnly(),
+        request.getOverflow(), responseObserver);
     logger.debug("BACKEND WATCH command processed on key:{}", request.getKey());
   }
 
@@ -18,6 +18,7 @@
 package org.dalvdb.service.client;
 
 import dalv.common.Common;
+import io.grpc.Context;
 import io.grpc.stub.StreamObserver;
 import io.jsonwebtoken.*;
 import io.jsonwebtoken.security.SecurityException;
@@ -26,6 +27,8 @@ import org.dalvdb.exception.InternalServerException;
 import org.dalvdb.lock.UserLockManager;
 import org.dalvdb.proto.ClientProto;
 import org.dalvdb.proto.ClientServerGrpc;
+import org.dalvdb.service.Deadlines;
+import org.dalvdb.service.UserMailboxes;
 import org.dalvdb.storage.StorageService;
 import org.dalvdb.watch.WatchManager;
 import org.slf4j.Logger;
@@ -33,19 +36,31 @@ import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 public class ClientServerImpl extends ClientServerGrpc.ClientServerImplBase {
   private static final Logger logger = LoggerFactory.getLogger(ClientServerImpl.class);
   private final StorageService storage;
   private final UserLockManager userLockManager;
   private final WatchManager watchManager;
+  private final UserMailboxes mailboxes;
+  private final Executor storageWorkers;
   private final JwtParser parser = Jwts.parserBuilder()
       .setSigningKey(DalvConfig.getStr(DalvConfig.JWT_SIGN)).build();
 
-  public ClientServerImpl(StorageService storage, WatchManager watchManager) {
+  /**
+   * @param mailboxes      where the syncs are queued, or null to run them with the user's lock
+   * @param storageWorkers where the syncs run once the user's lock is acquired, unused with the mailboxes
+   */
+  public ClientServerImpl(StorageService storage, WatchManager watchManager, UserMailboxes mailboxes,
+                          Executor storageWorkers) {
     this.storage = storage;
     this.userLockManager = UserLockManager.getInstance();
     this.watchManager = watchManager;
+    this.mailboxes = mailboxes;
+    this.storageWorkers = storageWorkers;
   }
 
   @Override
@@ -53,7 +68,8 @@ public class ClientServerImpl extends ClientServerGrpc.ClientServerImplBase {
     logger.debug("CLIENT WATCH command received on key:{}", request.getKey());
     String jwt = request.getJwt();
     String userId = validate(jwt);
-    watchManager.addClientWatch(userId, request.getKey(), responseObserver);
+    watchManager.addClientWatch(userId, request.getKey(), request.getBatched(), request.getLatestOnly(),
+        request.getOverflow(), responseObserver);
     logger.debug("CLIENT WATCH command processed on key:{}", request.getKey());
   }
 
@@ -87,71 +103,113 @@ public class ClientServerImpl extends ClientServerGrpc.ClientServerImplBase {
     String userId = validate(jwt);
     logger.debug("SYNC command received: userId:{}, lastSnapshotId:{}, operations:{}",
         userId, request.getLastSnapshotId(), request.getOpsList());
-    ClientProto.SyncResponse res = null;
     if (Objects.isNull(userId)) {
-      res = ClientProto.SyncResponse.newBuilder()
+      ClientProto.SyncResponse res = ClientProto.SyncResponse.newBuilder()
           .setSyncResponse(Common.RepType.UNRECOGNIZED).build();
       responseObserver.onNext(res);
       responseObserver.onCompleted();
       return;
     }
     try {
-      res = handleSync(userId, request);
+      if (request.getOpsCount() == 0) {
+        ClientProto.SyncResponse res = readWithoutLock(userId, request.getLastSnapshotId());
+        if (res != null) {
+          responseObserver.onNext(res);
+          responseObserver.onCompleted();
+          return;
+        }
+      }
     } catch (InternalServerException e) {
       logger.error(e.getMessage(), e);
       responseObserver.onError(e);
+      return;
     }
-    responseObserver.onNext(res);
-    responseObserver.onCompleted();
-    watchManager.notifyChange(userId, request.getOpsList());
-  }
-
-  private ClientProto.SyncResponse handleSync(String userId, ClientProto.SyncRequest request)
-      throws InternalServerException {
-    try {
-      if (request.getOpsList() != null && request.getOpsList().size() > 0) {
-        return handleSyncWithUpdate(userId, request);
-      } else {
-        return handleSyncWithoutUpdate(userId, request);
+    handleSync(userId, request).whenComplete((res, e) -> {
+      if (e != null) {
+        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+        logger.error(cause.getMessage(), cause);
+        responseObserver.onError(cause);
+        return;
       }
-    } catch (InterruptedException e) {
-      throw new InternalServerException(e);
-    }
+      responseObserver.onNext(res);
+      responseObserver.onCompleted();
+    });
   }
 
-  private ClientProto.SyncResponse handleSyncWithoutUpdate(String userId, ClientProto.SyncRequest request) throws InterruptedException {
-    ClientProto.SyncResponse.Builder resBuilder = ClientProto.SyncResponse.newBuilder();
-    //TODO: maybe it's better to retry for a limited time if it cannot acquire the lock
-    if (userLockManager.tryReadLock(userId, DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
+  /**
+   * Run the sync in the user's mailbox or once the user's lock is acquired, the write lock if it has operations and the
+   * read lock otherwise, without the calling thread waiting for either
+   */
+  private CompletableFuture<ClientProto.SyncResponse> handleSync(String userId, ClientProto.SyncRequest request) {
+    if (mailboxes != null)
+      return mailboxes.submit(userId, () -> sync(userId, request));
+    boolean write = request.getOpsCount() > 0;
+    //waits in the lock's queue as long as the client waits for the response instead of the client retrying
+    long timeout = Deadlines.lockWait();
+    Context context = Context.current();
+    CompletableFuture<Boolean> locked = write ? userLockManager.tryWriteLockAsync(userId, timeout)
+        : userLockManager.tryReadLockAsync(userId, timeout);
+    return locked.thenApplyAsync(acquired -> {
+      if (!acquired)
+        return ClientProto.SyncResponse.newBuilder().setSyncResponse(Common.RepType.NOK).build();
       try {
-        read(userId, request.getLastSnapshotId(), resBuilder);
-        resBuilder.setSyncResponse(Common.RepType.OK);
-        return resBuilder.build();
+        if (context.isCancelled())
+          return ClientProto.SyncResponse.newBuilder().setSyncResponse(Common.RepType.NOK).build();
+        return sync(userId, request);
       } finally {
-        userLockManager.releaseReadLock(userId);
+        if (write)
+          userLockManager.releaseWriteLock(userId);
+        else
+          userLockManager.releaseReadLock(userId);
       }
-    }
-    resBuilder.setSyncResponse(Common.RepType.NOK);
-    return resBuilder.build();
+    }, storageWorkers);
   }
 
-  private ClientProto.SyncResponse handleSyncWithUpdate(String userId, ClientProto.SyncRequest request) throws InterruptedException {
+  /**
+   * Handle the operations of the sync, if any, notify the watchers and read the user's log, the caller must hold the
+   * user's lock or run in the user's mailbox
+   */
+  private ClientProto.SyncResponse sync(String userId, ClientProto.SyncRequest request) {
     ClientProto.SyncResponse.Builder resBuilder = ClientProto.SyncResponse.newBuilder();
-    //TODO: maybe it's better to retry for a limited time if it cannot acquire the lock
-    if (userLockManager.tryWriteLock(userId, DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-      try {
-        boolean updatesHandledSuccessfully = storage.handleOperations(userId, request.getOpsList(), request.getLastSnapshotId());
-        resBuilder.setSyncResponse(updatesHandledSuccessfully ? Common.RepType.OK : Common.RepType.NOK);
-        read(userId, request.getLastSnapshotId(), resBuilder);
-        return resBuilder.build();
-      } finally {
-        userLockManager.releaseWriteLock(userId);
-      }
-    }
-    resBuilder.setSyncResponse(Common.RepType.NOK);
+    boolean updatesHandledSuccessfully = request.getOpsCount() == 0 || storage.handleOperations(userId,
+        request.getOpsList(), request.getLastSnapshotId(), clientDurability(request.getDurability()));
+    resBuilder.setSyncResponse(updatesHandledSuccessfully ? Common.RepType.OK : Common.RepType.NOK);
+    //notified while the user's changes are exclusive, so the watchers receive them in the order they are committed
+    if (updatesHandledSuccessfully && request.getOpsCount() > 0)
+      watchManager.notifyChange(userId, request.getOpsList());
+    read(userId, request.getLastSnapshotId(), resBuilder);
     return resBuilder.build();
   }
 
+  /**
+   * A client may only ask for a stricter level than the configured one: the relaxed levels are left to the backends
+   * and the namespace configuration, otherwise a client could lose its writes on a crash or force the NO_WAL ones
+   * of its user to be flushed on every write
+   */
+  private static Common.Durability clientDurability(Common.Durability requested) {
+    if (requested == Common.Durability.SYNC || requested == Common.Durability.GROUP)
+      return requested;
+    return Common.Durability.DEFAULT;
+  }
+
+  /**
+   * The storage reads the user's log from a consistent view without the lock, the lock is only needed to append a
+   * snapshot when the client is behind
+   *
+   * @return the response, or null if a snapshot must be appended
+   */
+  private ClientProto.SyncResponse readWithoutLock(String userId, int lastSnapshotId) {
+    List<Common.Operation> ops = storage.get(userId, lastSnapshotId);
+    if (ops.isEmpty() || ops.get(ops.size() - 1).getType() == Common.OpType.SNAPSHOT) {
+      return ClientProto.SyncResponse.newBuilder()
+          .addAllOps(ops)
+          .setSnapshotId(lastSnapshotId)
+          .setSyncResponse(Common.RepType.OK)
+          .build();
+    }
+    return null;
+  }
+
   private void read(String userId, int lastSnapshotId,
                     ClientProto.SyncResponse.Builder responseBuilder) {
     List<Common.Operation> ops = storage.get(userId, lastSnapshotId);
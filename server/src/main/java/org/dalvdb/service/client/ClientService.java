@@ -20,6 +20,7 @@ package org.dalvdb.service.client;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import org.dalvdb.DalvConfig;
+import org.dalvdb.service.UserMailboxes;
 import org.dalvdb.watch.WatchManager;
 import org.dalvdb.storage.StorageService;
 import org.slf4j.Logger;
@@ -27,15 +28,18 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 public class ClientService implements Closeable {
   private static final Logger logger = LoggerFactory.getLogger(ClientService.class);
   private final Server server;
 
-  public ClientService(StorageService storageService, WatchManager watchManager) {
+  public ClientService(StorageService storageService, WatchManager watchManager, UserMailboxes mailboxes,
+                       Executor storageWorkers) {
     final int port = DalvConfig.getInt(DalvConfig.CLIENT_PORT);
-    server = ServerBuilder.forPort(port).addService(new ClientServerImpl(storageService, watchManager)).build();
+    server = ServerBuilder.forPort(port)
+        .addService(new ClientServerImpl(storageService, watchManager, mailboxes, storageWorkers)).build();
     try {
       server.start();
     } catch (IOException e) {
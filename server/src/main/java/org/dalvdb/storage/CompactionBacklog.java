@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The users waiting for compaction, stored in the 'backlog' column family so the compaction queue is restored after a
+ * restart without scanning all the users.
+ * <p>
+ * Every batch appending operations to a user's log also adds a mark keyed by {@code userId | 0x00 | seqNo} of its last
+ * record, with the number of appended operations as the value. A compaction up to a watermark removes the marks up to
+ * it, so the marks of the operations appended concurrently survive and the user stays in the backlog.
+ */
+class CompactionBacklog {
+  private final RocksDB rocksDB;
+  private final ColumnFamilyHandle backlogCf;
+
+  CompactionBacklog(RocksDB rocksDB, ColumnFamilyHandle backlogCf) {
+    this.rocksDB = rocksDB;
+    this.backlogCf = backlogCf;
+  }
+
+  /**
+   * Visit a user of the backlog
+   */
+  interface PendingVisitor {
+    /**
+     * @param userId the user waiting for compaction
+     * @param ops    the number of operations appended since its last compaction
+     */
+    void visit(String userId, long ops);
+  }
+
+  /**
+   * Add the operations appended to the user's log in the batch to the backlog
+   *
+   * @param lastSeq the sequence number of the last appended record
+   * @param ops     the number of appended operations
+   */
+  void add(String userId, long lastSeq, int ops, WriteBatch wb) throws RocksDBException {
+    wb.put(backlogCf, OperationLog.recordKey(userId, lastSeq), ByteBuffer.allocate(4).putInt(ops).array());
+  }
+
+  /**
+   * Remove the user's operations up to the watermark from the backlog
+   */
+  void compacted(String userId, long watermark, WriteBatch wb) throws RocksDBException {
+    wb.deleteRange(backlogCf, OperationLog.recordKey(userId, 0), OperationLog.recordKey(userId, watermark + 1));
+  }
+
+  /**
+   * Remove the user from the backlog
+   */
+  void delete(String userId, WriteBatch wb) throws RocksDBException {
+    wb.deleteRange(backlogCf, OperationLog.recordKey(userId, 0), OperationLog.recordKey(userId, Long.MAX_VALUE));
+  }
+
+  /**
+   * Visit all the users of the backlog, each user visited once. The cost is proportional to the size of the backlog,
+   * not to the number of users.
+   */
+  void forEach(PendingVisitor visitor) {
+    try (RocksIterator it = rocksDB.newIterator(backlogCf)) {
+      String current = null;
+      long ops = 0;
+      for (it.seekToFirst(); it.isValid(); it.next()) {
+        String userId = OperationLog.userOf(it.key());
+        if (!userId.equals(current)) {
+          if (current != null)
+            visitor.visit(current, ops);
+          current = userId;
+          ops = 0;
+        }
+        ops += ByteBuffer.wrap(it.value()).getInt();
+      }
+      if (current != null)
+        visitor.visit(current, ops);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the previous compactions of a user left behind, stored in the 'meta' column family so the next compaction
+ * only reads the records appended since then.
+ * <p>
+ * For each user it keeps the compacted prefix: the sequence number up to which the log is compacted, and the
+ * snapshots at the top of that prefix which were kept. For each key of the user it keeps the sequence numbers of the
+ * records of that key which survived in the prefix, so the records superseded by a newer operation are found by a
+ * short range scan instead of a scan of the log.
+ * <p>
+ * Each live record has its own entry keyed by {@code userId.keyIndex. | key length | key | seqNo}, so adding or
+ * removing a record writes only its own entry and growing a list costs the same whatever its size.
+ */
+class CompactionIndex {
+  private final RocksDB rocksDB;
+  private final ColumnFamilyHandle metaCf;
+
+  CompactionIndex(RocksDB rocksDB, ColumnFamilyHandle metaCf) {
+    this.rocksDB = rocksDB;
+    this.metaCf = metaCf;
+  }
+
+  /**
+   * The compacted part of a user's log
+   */
+  static final class Prefix {
+    static final Prefix EMPTY = new Prefix(0, Collections.emptyList());
+    /**
+     * the log is compacted up to this sequence number, inclusive
+     */
+    final long watermark;
+    /**
+     * the sequence number and the id of the snapshots kept at the top of the prefix
+     */
+    final List<long[]> snapshots;
+
+    Prefix(long watermark, List<long[]> snapshots) {
+      this.watermark = watermark;
+      this.snapshots = snapshots;
+    }
+  }
+
+  Prefix prefix(String userId) throws RocksDBException {
+    byte[] value = rocksDB.get(metaCf, prefixKey(userId));
+    if (value == null) return Prefix.EMPTY;
+    ByteBuffer buf = ByteBuffer.wrap(value);
+    long watermark = buf.getLong();
+    List<long[]> snapshots = new ArrayList<>();
+    while (buf.hasRemaining())
+      snapshots.add(new long[]{buf.getLong(), buf.getInt()});
+    return new Prefix(watermark, snapshots);
+  }
+
+  void putPrefix(String userId, Prefix prefix, WriteBatch wb) throws RocksDBException {
+    ByteBuffer buf = ByteBuffer.allocate(8 + prefix.snapshots.size() * 12).putLong(prefix.watermark);
+    for (long[] snapshot : prefix.snapshots)
+      buf.putLong(snapshot[0]).putInt((int) snapshot[1]);
+    wb.put(metaCf, prefixKey(userId), buf.array());
+  }
+
+  /**
+   * @return the sequence numbers of the live records of the key in the compacted prefix, in ascending order
+   */
+  long[] liveRecords(String userId, String key) {
+    byte[] prefix = keyIndexPrefix(userId, key);
+    long[] seqs = new long[8];
+    int size = 0;
+    try (RocksIterator it = rocksDB.newIterator(metaCf)) {
+      for (it.seek(prefix); it.isValid() && startsWith(it.key(), prefix); it.next()) {
+        if (size == seqs.length)
+          seqs = Arrays.copyOf(seqs, size * 2);
+        seqs[size++] = ByteBuffer.wrap(it.key(), prefix.length, 8).getLong();
+      }
+    }
+    return Arrays.copyOf(seqs, size);
+  }
+
+  void addLiveRecord(String userId, String key, long seq, WriteBatch wb) throws RocksDBException {
+    wb.put(metaCf, keyIndexKey(keyIndexPrefix(userId, key), seq), new byte[0]);
+  }
+
+  void deleteLiveRecord(String userId, String key, long seq, WriteBatch wb) throws RocksDBException {
+    wb.delete(metaCf, keyIndexKey(keyIndexPrefix(userId, key), seq));
+  }
+
+  /**
+   * Replace all the live records of the key
+   */
+  void putLiveRecords(String userId, String key, List<Long> seqs, WriteBatch wb) throws RocksDBException {
+    byte[] prefix = keyIndexPrefix(userId, key);
+    wb.deleteRange(metaCf, keyIndexKey(prefix, 0), keyIndexKey(prefix, Long.MAX_VALUE));
+    for (long seq : seqs)
+      wb.put(metaCf, keyIndexKey(prefix, seq), new byte[0]);
+  }
+
+  /**
+   * Remove everything stored for the user
+   */
+  void delete(String userId, WriteBatch wb) throws RocksDBException {
+    wb.delete(metaCf, prefixKey(userId));
+    wb.deleteRange(metaCf, (userId + ".keyIndex.").getBytes(Charset.defaultCharset()),
+        (userId + ".keyIndex/").getBytes(Charset.defaultCharset()));
+  }
+
+  private static byte[] prefixKey(String userId) {
+    return (userId + ".compacted").getBytes(Charset.defaultCharset());
+  }
+
+  /**
+   * The key is prefixed with its length, so the entries of a key are never mistaken for the ones of a longer key
+   * starting with it
+   */
+  private static byte[] keyIndexPrefix(String userId, String key) {
+    byte[] user = (userId + ".keyIndex.").getBytes(Charset.defaultCharset());
+    byte[] k = key.getBytes(Charset.defaultCharset());
+    return ByteBuffer.allocate(user.length + 4 + k.length).put(user).putInt(k.length).put(k).array();
+  }
+
+  private static byte[] keyIndexKey(byte[] prefix, long seq) {
+    return ByteBuffer.allocate(prefix.length + 8).put(prefix).putLong(seq).array();
+  }
+
+  private static boolean startsWith(byte[] key, byte[] prefix) {
+    if (key.length < prefix.length) return false;
+    for (int i = 0; i < prefix.length; i++)
+      if (key[i] != prefix[i]) return false;
+    return true;
+  }
+}
@@ -18,19 +18,45 @@
 package org.dalvdb.storage;
 
 import org.dalvdb.DalvConfig;
-import org.rocksdb.RocksIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Decides which users to compact and when.
+ * <p>
+ * Users are queued {@link DalvConfig#COMPACTION_DELAY} seconds after they receive an update, and every
+ * {@link DalvConfig#COMPACTION_INTERVAL} seconds a pool of {@link DalvConfig#COMPACTION_THREADS} workers drains the
+ * queue. The queue is deduplicated and ordered by the estimated garbage of each user, which is the number of operations
+ * appended since its last compaction, users with the same estimation are compacted in the order they were queued.
+ * The queue is restored on startup from the backlog persisted by the storage, see {@link CompactionBacklog}.
+ * The log bytes read by all the workers are limited by {@link DalvConfig#COMPACTION_IO_BUDGET} per second so the
+ * compaction does not starve the foreground requests.
+ */
 class CompactionScheduler implements Closeable {
-  private final LinkedHashSet<String> queue = new LinkedHashSet<>();
+  private static final Logger logger = LoggerFactory.getLogger(CompactionScheduler.class);
+  private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+  private final PriorityBlockingQueue<Candidate> queue = new PriorityBlockingQueue<>(64,
+      Comparator.comparingLong((Candidate c) -> -c.score).thenComparingLong(c -> c.pending.order));
+  private final AtomicLong order = new AtomicLong();
   private final ScheduledExecutorService compactionEs = new ScheduledThreadPoolExecutor(1);
   private final ScheduledExecutorService addToQueueEs = new ScheduledThreadPoolExecutor(1);
+  private final int threads = DalvConfig.getInt(DalvConfig.COMPACTION_THREADS);
+  private final ExecutorService workers = Executors.newFixedThreadPool(threads);
+  private final AtomicInteger running = new AtomicInteger();
+  private final IoBudget ioBudget = new IoBudget(DalvConfig.getLong(DalvConfig.COMPACTION_IO_BUDGET));
+  private volatile boolean closed = false;
 
   private final RocksStorageService storage;
 
@@ -38,39 +64,125 @@ class CompactionScheduler implements Closeable {
     this.storage = storage;
   }
 
+  /**
+   * The operations of a user waiting for compaction. The queue is only updated when the score of a user doubles, so
+   * a busy user leaves a logarithmic number of stale entries in the queue instead of one per update.
+   */
+  private static final class Pending {
+    private final long order;
+    private long score;
+    private long queuedScore;
+
+    private Pending(long order) {
+      this.order = order;
+    }
+  }
+
+  private static final class Candidate {
+    private final String userId;
+    private final Pending pending;
+    private final long score;
+
+    private Candidate(String userId, Pending pending, long score) {
+      this.userId = userId;
+      this.pending = pending;
+      this.score = score;
+    }
+  }
+
   void startScheduler() {
-    preFillTheUpdates();
+    storage.forEachBacklogged(this::enqueue);
     compactionEs.scheduleWithFixedDelay(this::compaction, DalvConfig.getLong(DalvConfig.COMPACTION_INTERVAL),
         DalvConfig.getLong(DalvConfig.COMPACTION_INTERVAL), TimeUnit.SECONDS);
   }
 
   void updateReceived(String userId) {
-    addToQueueEs.schedule(() -> {
-      queue.add(userId);
-    }, DalvConfig.getLong(DalvConfig.COMPACTION_DELAY), TimeUnit.SECONDS);
+    updateReceived(userId, 1);
   }
 
-  private void preFillTheUpdates() {
-    RocksIterator rocksIterator = storage.keyIterator();
-    while (rocksIterator.isValid()) {
-      queue.add(new String(rocksIterator.key()));
-      rocksIterator.next();
+  /**
+   * @param userId the user which received the update
+   * @param ops    the number of operations appended to the user's log
+   */
+  void updateReceived(String userId, int ops) {
+    addToQueueEs.schedule(() -> enqueue(userId, ops), DalvConfig.getLong(DalvConfig.COMPACTION_DELAY),
+        TimeUnit.SECONDS);
+  }
+
+  private void enqueue(String userId, long ops) {
+    Candidate[] candidate = {null};
+    pending.compute(userId, (k, p) -> {
+      if (p == null)
+        p = new Pending(order.getAndIncrement());
+      p.score += ops;
+      if (p.score >= 2 * p.queuedScore) {
+        p.queuedScore = p.score;
+        candidate[0] = new Candidate(userId, p, p.score);
+      }
+      return p;
+    });
+    if (candidate[0] != null)
+      queue.add(candidate[0]);
+  }
+
+  /**
+   * @return the next user to compact, or null if there is none
+   */
+  private String poll() {
+    Candidate candidate;
+    while ((candidate = queue.poll()) != null) {
+      Candidate c = candidate;
+      boolean[] valid = {false};
+      pending.computeIfPresent(c.userId, (k, p) -> {
+        valid[0] = p == c.pending && p.queuedScore == c.score;
+        return valid[0] ? null : p;
+      });
+      if (valid[0])
+        return c.userId;
     }
-    rocksIterator.close();
+    return null;
+  }
+
+  /**
+   * @return the budget the compaction spends the log bytes it reads from
+   */
+  IoBudget ioBudget() {
+    return ioBudget;
   }
 
   private void compaction() {
-    Iterator<String> it = queue.iterator();
-    if (it.hasNext()) {
-      String keyToCompact = it.next();
-      storage.compact(keyToCompact);
-      queue.remove(keyToCompact);
+    while (!queue.isEmpty() && running.get() < threads) {
+      running.incrementAndGet();
+      workers.submit(this::drain);
+    }
+  }
+
+  private void drain() {
+    try {
+      String userId;
+      while (!closed && (userId = poll()) != null) {
+        try {
+          storage.compact(userId);
+        } catch (RuntimeException e) {
+          logger.error("compaction of {} failed", userId, e);
+        }
+      }
+    } finally {
+      running.decrementAndGet();
     }
   }
 
   @Override
   public void close() {
+    closed = true;
     compactionEs.shutdown();
     addToQueueEs.shutdown();
+    workers.shutdownNow();
+    try {
+      //the storage is closed right after, so the in-progress compactions must not touch it anymore
+      workers.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import dalv.common.Common;
+import org.dalvdb.DalvConfig;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.FlushOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes the batches with the {@link Common.Durability} level they ask for.
+ * <p>
+ * SYNC and GROUP writes are synced before returning, the latter through the {@link GroupCommitWriter}. The relaxed
+ * levels return as soon as the batch is in the memtable, their loss window is bounded by a background task: ASYNC_WAL
+ * writes are synced every {@link DalvConfig#DURABILITY_WAL_SYNC_INTERVAL} milliseconds and NO_WAL writes are flushed
+ * to the SST files every {@link DalvConfig#DURABILITY_FLUSH_INTERVAL} milliseconds.
+ * <p>
+ * When a write does not ask for a level, it is taken from {@link DalvConfig#DURABILITY_NAMESPACES}, a comma separated
+ * list of {@code keyPrefix=LEVEL} where the longest prefix matching a key wins and a batch touching several keys gets
+ * the strictest level among them, or {@link DalvConfig#DURABILITY_DEFAULT} if no prefix matches.
+ * <p>
+ * The writes of a user build on the state the previous ones left in the memtable: the sequence numbers of the log,
+ * the materialized values and the snapshot ids. A write logged in the WAL must not be recovered without a NO_WAL write
+ * of the same user before it, so when a user has NO_WAL writes which are not flushed yet the memtables are flushed
+ * before any other write of the user. Mixing NO_WAL with the other levels for a user is correct but costs a flush.
+ */
+class DurableWriter implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(DurableWriter.class);
+  private final RocksDB rocksDB;
+  private final List<ColumnFamilyHandle> handles;
+  private final WriteOptions syncWo;
+  private final WriteOptions asyncWalWo;
+  private final WriteOptions noWalWo;
+  private final GroupCommitWriter groupCommit;
+  private final Common.Durability defaultDurability;
+  private final TreeMap<String, Common.Durability> namespaces;
+  private final ScheduledExecutorService es = Executors.newSingleThreadScheduledExecutor();
+  private final Map<Common.Durability, LongAdder> writes = new EnumMap<>(Common.Durability.class);
+  private final LongAdder unsyncedWrites = new LongAdder();
+  private final LongAdder unflushedWrites = new LongAdder();
+  private final LongAdder walSyncs = new LongAdder();
+  private final LongAdder flushes = new LongAdder();
+  //the users with NO_WAL writes which may not be flushed yet, with the sequence number the last of them is covered by
+  private final ConcurrentHashMap<String, Long> unflushedUsers = new ConcurrentHashMap<>();
+
+  /**
+   * @param rocksDB the database
+   * @param handles all the column families, flushed together for the NO_WAL writes
+   */
+  DurableWriter(RocksDB rocksDB, List<ColumnFamilyHandle> handles) {
+    this.rocksDB = rocksDB;
+    this.handles = handles;
+    this.syncWo = new WriteOptions().setSync(true);
+    this.asyncWalWo = new WriteOptions().setSync(false);
+    this.noWalWo = new WriteOptions().setDisableWAL(true);
+    int groupCommitMaxBatch = DalvConfig.getInt(DalvConfig.GROUP_COMMIT_MAX_BATCH);
+    this.groupCommit = groupCommitMaxBatch > 1 ?
+        new GroupCommitWriter(rocksDB, groupCommitMaxBatch, DalvConfig.getLong(DalvConfig.GROUP_COMMIT_MAX_WAIT)) : null;
+    this.defaultDurability = Common.Durability.valueOf(DalvConfig.getStr(DalvConfig.DURABILITY_DEFAULT));
+    this.namespaces = parseNamespaces(DalvConfig.getStr(DalvConfig.DURABILITY_NAMESPACES));
+    for (Common.Durability durability : Common.Durability.values())
+      if (durability != Common.Durability.UNRECOGNIZED)
+        writes.put(durability, new LongAdder());
+    long syncInterval = DalvConfig.getLong(DalvConfig.DURABILITY_WAL_SYNC_INTERVAL);
+    es.scheduleWithFixedDelay(this::syncWal, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    long flushInterval = DalvConfig.getLong(DalvConfig.DURABILITY_FLUSH_INTERVAL);
+    es.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  private static TreeMap<String, Common.Durability> parseNamespaces(String config) {
+    TreeMap<String, Common.Durability> result = new TreeMap<>();
+    if (config == null || config.isBlank()) return result;
+    for (String entry : config.split(",")) {
+      int idx = entry.lastIndexOf('=');
+      if (idx < 0)
+        throw new IllegalArgumentException("invalid durability namespace: " + entry);
+      result.put(entry.substring(0, idx).trim(), Common.Durability.valueOf(entry.substring(idx + 1).trim()));
+    }
+    return result;
+  }
+
+  /**
+   * Decide the durability of a write
+   *
+   * @param requested the level asked by the request, DEFAULT to decide based on the configuration
+   * @param ops       the operations of the write
+   * @return the level to write with, never DEFAULT
+   */
+  Common.Durability resolve(Common.Durability requested, List<Common.Operation> ops) {
+    if (requested != null && requested != Common.Durability.DEFAULT && requested != Common.Durability.UNRECOGNIZED)
+      return requested;
+    Common.Durability result = null;
+    for (Common.Operation op : ops) {
+      if (op.getType() == Common.OpType.SNAPSHOT) continue;
+      Common.Durability durability = namespaceOf(op.getKey());
+      if (result == null || durability.getNumber() < result.getNumber())
+        result = durability;
+    }
+    return result == null ? defaultDurability : result;
+  }
+
+  private Common.Durability namespaceOf(String key) {
+    //the candidates are the prefixes sorting before the key, the longest matching one is the closest to it
+    for (Map.Entry<String, Common.Durability> e = namespaces.floorEntry(key); e != null;
+         e = namespaces.lowerEntry(e.getKey())) {
+      if (key.startsWith(e.getKey()))
+        return e.getValue();
+    }
+    return defaultDurability;
+  }
+
+  /**
+   * Write the batch with the provided level of durability
+   */
+  void write(WriteBatch wb, Common.Durability durability) throws RocksDBException {
+    switch (durability) {
+      case SYNC:
+        rocksDB.write(syncWo, wb);
+        break;
+      case ASYNC_WAL:
+        rocksDB.write(asyncWalWo, wb);
+        unsyncedWrites.increment();
+        break;
+      case NO_WAL:
+        rocksDB.write(noWalWo, wb);
+        unflushedWrites.increment();
+        break;
+      case GROUP:
+        if (groupCommit != null) {
+          groupCommit.write(wb);
+          break;
+        }
+        rocksDB.write(syncWo, wb);
+        break;
+      default:
+        write(wb, defaultDurability);
+        return;
+    }
+    writes.get(durability).increment();
+  }
+
+  /**
+   * Write a batch of the user with the provided level of durability, after flushing the user's NO_WAL writes if the
+   * batch is logged in the WAL
+   */
+  void write(String userId, WriteBatch wb, Common.Durability durability) throws RocksDBException {
+    if (durability == Common.Durability.DEFAULT || durability == Common.Durability.UNRECOGNIZED)
+      durability = defaultDurability;
+    if (durability == Common.Durability.NO_WAL) {
+      write(wb, durability);
+      //may be the number of a later write, which only keeps the user pending longer
+      unflushedUsers.merge(userId, rocksDB.getLatestSequenceNumber(), Math::max);
+      return;
+    }
+    if (unflushedUsers.containsKey(userId) && !flush())
+      throw new RocksDBException("the NO_WAL writes of " + userId + " could not be flushed");
+    write(wb, durability);
+  }
+
+  private void syncWal() {
+    long pending = unsyncedWrites.sum();
+    if (pending == 0) return;
+    try {
+      rocksDB.flushWal(true);
+      unsyncedWrites.add(-pending);
+      walSyncs.increment();
+      logger.debug("WAL synced, {} ASYNC_WAL writes made durable", pending);
+    } catch (RocksDBException e) {
+      logger.error("periodic WAL sync failed, {} ASYNC_WAL writes are not durable yet", pending, e);
+    }
+  }
+
+  /**
+   * @return false if the flush failed
+   */
+  private synchronized boolean flush() {
+    long pending = unflushedWrites.sum();
+    if (pending == 0 && unflushedUsers.isEmpty()) return true;
+    //the writes done before the flush starts are in the flushed memtables
+    long flushedUpTo = rocksDB.getLatestSequenceNumber();
+    try (FlushOptions flushOptions = new FlushOptions().setWaitForFlush(true)) {
+      rocksDB.flush(flushOptions, handles);
+      unflushedWrites.add(-pending);
+      unflushedUsers.values().removeIf(seq -> seq <= flushedUpTo);
+      flushes.increment();
+      logger.debug("memtables flushed, {} NO_WAL writes made durable", pending);
+      return true;
+    } catch (RocksDBException e) {
+      logger.error("flush failed, {} NO_WAL writes are not durable yet", pending, e);
+      return false;
+    }
+  }
+
+  /**
+   * @return the number of writes done with the provided level since the start
+   */
+  long writes(Common.Durability durability) {
+    return writes.get(durability).sum();
+  }
+
+  /**
+   * @return the number of ASYNC_WAL writes which would be lost on a machine crash right now
+   */
+  long unsyncedWrites() {
+    return unsyncedWrites.sum();
+  }
+
+  /**
+   * @return the number of NO_WAL writes which would be lost on a process crash right now
+   */
+  long unflushedWrites() {
+    return unflushedWrites.sum();
+  }
+
+  /**
+   * @return the number of periodic WAL syncs done for the ASYNC_WAL writes
+   */
+  long walSyncs() {
+    return walSyncs.sum();
+  }
+
+  /**
+   * @return the number of periodic flushes done for the NO_WAL writes
+   */
+  long flushes() {
+    return flushes.sum();
+  }
+
+  @Override
+  public void close() {
+    es.shutdown();
+    try {
+      es.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    //make the relaxed writes durable before the database is closed
+    syncWal();
+    flush();
+    logger.info("durability stats: writes={}, walSyncs={}, flushes={}", writes, walSyncs.sum(), flushes.sum());
+    if (groupCommit != null)
+      groupCommit.close();
+    syncWo.close();
+    asyncWalWo.close();
+    noWalWo.close();
+  }
+}
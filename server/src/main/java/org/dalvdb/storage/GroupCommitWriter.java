@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import org.dalvdb.exception.InternalServerException;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Makes concurrent writes durable with a single fsync.
+ * <p>
+ * Each caller writes its batch into the WAL without syncing it and then waits for the committer thread, which
+ * collects up to maxBatchSize waiting writes, lingering at most maxWait microseconds for more of them, syncs the WAL
+ * once and releases all of them together. A write is acknowledged only after a sync which started after the write
+ * itself, so the durability is the same as writing every batch with a synced {@link WriteOptions}.
+ * <p>
+ * The batch is applied to the memtables before it is synced, so until the sync completes it is visible to the reads
+ * which take no user lock, like the ones of a {@link ReadView}. The cache, the watchers and the other writers of the
+ * user only see it after {@link #write(WriteBatch)} returns. An applied batch cannot be taken back, so a failed sync
+ * is fatal: the waiting writes fail and every later write is rejected until the storage is restarted, which recovers
+ * from the WAL what was synced.
+ */
+class GroupCommitWriter implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(GroupCommitWriter.class);
+  private final BlockingQueue<CompletableFuture<Void>> waiting = new LinkedBlockingQueue<>();
+  private final RocksDB rocksDB;
+  private final WriteOptions unsyncedWo;
+  private final int maxBatchSize;
+  private final long maxWaitNanos;
+  private final Thread committer;
+  private final LongAdder syncs = new LongAdder();
+  private final LongAdder synced = new LongAdder();
+  private volatile boolean closed = false;
+  private volatile RocksDBException syncFailure;
+
+  GroupCommitWriter(RocksDB rocksDB, int maxBatchSize, long maxWaitMicros) {
+    this.rocksDB = rocksDB;
+    this.unsyncedWo = new WriteOptions().setSync(false);
+    this.maxBatchSize = maxBatchSize;
+    this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+    this.committer = new Thread(this::commitLoop, "dalv-group-commit");
+    this.committer.setDaemon(true);
+    this.committer.start();
+  }
+
+  /**
+   * Write the batch and block until it is synced to the disk
+   *
+   * @param wb the batch to write
+   * @throws RocksDBException       if the write or the sync fails
+   * @throws InternalServerException if a previous sync failed
+   */
+  void write(WriteBatch wb) throws RocksDBException {
+    if (syncFailure != null)
+      throw new InternalServerException(new IllegalStateException("the WAL could not be synced, writes are rejected",
+          syncFailure));
+    rocksDB.write(unsyncedWo, wb);
+    CompletableFuture<Void> synced = new CompletableFuture<>();
+    waiting.add(synced);
+    if (closed) //the committer may have already left its loop
+      fail(new InternalServerException(new IllegalStateException("storage is closed")));
+    try {
+      synced.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InternalServerException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RocksDBException)
+        throw (RocksDBException) e.getCause();
+      throw new InternalServerException(e.getCause());
+    }
+  }
+
+  private void commitLoop() {
+    List<CompletableFuture<Void>> group = new ArrayList<>(maxBatchSize);
+    while (!closed) {
+      try {
+        group.add(waiting.take());
+        waiting.drainTo(group, maxBatchSize - group.size());
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (group.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) break;
+          CompletableFuture<Void> next = waiting.poll(remaining, TimeUnit.NANOSECONDS);
+          if (next == null) break;
+          group.add(next);
+        }
+      } catch (InterruptedException e) {
+        if (closed) break;
+        continue;
+      }
+      if (syncFailure != null) {
+        group.forEach(f -> f.completeExceptionally(syncFailure));
+        group.clear();
+        continue;
+      }
+      try {
+        rocksDB.flushWal(true);
+        syncs.increment();
+        synced.add(group.size());
+        group.forEach(f -> f.complete(null));
+      } catch (RocksDBException e) {
+        logger.error("could not sync the WAL for {} writes, rejecting all the writes from now on", group.size(), e);
+        syncFailure = e;
+        group.forEach(f -> f.completeExceptionally(e));
+      }
+      group.clear();
+    }
+    group.forEach(f -> f.completeExceptionally(new IllegalStateException("storage is closed")));
+    fail(new IllegalStateException("storage is closed"));
+  }
+
+  /**
+   * @return the number of WAL syncs done by the committer
+   */
+  long syncs() {
+    return syncs.sum();
+  }
+
+  /**
+   * @return the number of writes made durable by the committer's syncs
+   */
+  long syncedWrites() {
+    return synced.sum();
+  }
+
+  private void fail(Exception e) {
+    CompletableFuture<Void> f;
+    while ((f = waiting.poll()) != null)
+      f.completeExceptionally(e);
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    committer.interrupt();
+    try {
+      committer.join(TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    unsyncedWo.close();
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import org.dalvdb.common.util.OperationView;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The inline compaction mode, the records superseded by the operations of a batch are deleted in the same batch, so
+ * RocksDB drops them in its own background compaction and the log is never read and rewritten for them.
+ * <p>
+ * A record is superseded by a newer PUT or DEL of the same key, and an ADD_TO_LIST by a newer REMOVE_FROM_LIST of its
+ * value. A PUT is not superseded by a REMOVE_FROM_LIST, as it also dropped the items the list had before it. Deleting
+ * a superseded record does not change the state a client builds from any snapshot, since the superseding operation
+ * is still in the log after it. The live records of every key are kept in the {@link CompactionIndex}, so a write costs
+ * one short meta scan per key, plus reading the live records of a list it removes an item from, and it only adds and
+ * deletes the index entries of the records it appends and deletes. The operations which
+ * are never superseded, DEL, REMOVE_FROM_LIST and the old snapshots, are still removed by the background compaction.
+ * <p>
+ * The caller must hold the user's write lock.
+ */
+class InlineCompaction {
+  private final CompactionIndex index;
+  private final OperationLog operationLog;
+
+  InlineCompaction(CompactionIndex index, OperationLog operationLog) {
+    this.index = index;
+    this.operationLog = operationLog;
+  }
+
+  /**
+   * Delete the records superseded by the operations appended to the user's log in the batch and index the new ones
+   *
+   * @param lastSeq the sequence number of the last appended operation
+   * @return the number of deleted records
+   */
+  int apply(String userId, long lastSeq, List<Common.Operation> ops, WriteBatch wb) throws RocksDBException {
+    Map<String, List<Long>> touched = new HashMap<>();
+    Map<Long, Common.Operation> appended = new HashMap<>();
+    OperationView view = new OperationView();
+    int deleted = 0;
+    long seq = lastSeq - ops.size();
+    for (Common.Operation op : ops) {
+      seq++;
+      if (op.getType() == Common.OpType.SNAPSHOT) continue;
+      appended.put(seq, op);
+      List<Long> live = touched.get(op.getKey());
+      if (live == null) {
+        live = new ArrayList<>();
+        for (long s : index.liveRecords(userId, op.getKey()))
+          live.add(s);
+        touched.put(op.getKey(), live);
+      }
+      switch (op.getType()) {
+        case PUT:
+        case DEL:
+          for (long s : live) {
+            operationLog.delete(userId, s, wb);
+            index.deleteLiveRecord(userId, op.getKey(), s, wb);
+          }
+          deleted += live.size();
+          live.clear();
+          if (op.getType() == Common.OpType.PUT) {
+            live.add(seq);
+            index.addLiveRecord(userId, op.getKey(), seq, wb);
+          }
+          break;
+        case ADD_TO_LIST:
+          live.add(seq);
+          index.addLiveRecord(userId, op.getKey(), seq, wb);
+          break;
+        case REMOVE_FROM_LIST:
+          Iterator<Long> it = live.iterator();
+          while (it.hasNext()) {
+            long s = it.next();
+            Common.OpType type;
+            ByteString val;
+            Common.Operation pending = appended.get(s);
+            if (pending != null) {
+              type = pending.getType();
+              val = pending.getVal();
+            } else {
+              byte[] record = operationLog.get(userId, s);
+              if (record == null) {
+                index.deleteLiveRecord(userId, op.getKey(), s, wb);
+                it.remove();
+                continue;
+              }
+              view.wrap(record);
+              type = view.getType();
+              val = view.getVal();
+            }
+            if (type == Common.OpType.ADD_TO_LIST && val.equals(op.getVal())) {
+              operationLog.delete(userId, s, wb);
+              index.deleteLiveRecord(userId, op.getKey(), s, wb);
+              it.remove();
+              deleted++;
+            }
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return deleted;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the bytes per second read by a background task, shared by all of its threads. Up to one
+ * second worth of unused budget can be accumulated and spent at once.
+ */
+class IoBudget {
+  private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private final long bytesPerSecond;
+  private long nextFree = System.nanoTime();
+
+  /**
+   * @param bytesPerSecond the budget, 0 or less means unlimited
+   */
+  IoBudget(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * Spend the bytes from the budget, block until the budget allows it
+   */
+  void acquire(long bytes) throws InterruptedException {
+    if (bytesPerSecond <= 0) return;
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      nextFree = Math.max(nextFree, now - BURST_NANOS) + bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+      wait = nextFree - now;
+    }
+    if (wait > 0)
+      TimeUnit.NANOSECONDS.sleep(wait);
+  }
+}
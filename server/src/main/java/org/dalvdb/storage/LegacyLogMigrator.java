@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import org.dalvdb.DalvConfig;
+import org.dalvdb.lock.UserLockManager;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the users' logs from the legacy layout, one merge-appended value per user in the 'default' column family,
+ * into the sequence-keyed 'log' column family while the server is serving requests.
+ * <p>
+ * Each user is migrated under the user's write lock, users which write before the migrator reaches them are migrated on
+ * the write path by {@link RocksStorageService} itself.
+ */
+class LegacyLogMigrator implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(LegacyLogMigrator.class);
+  private final ExecutorService migrationEs = Executors.newSingleThreadExecutor();
+  private final RocksStorageService storage;
+  private volatile boolean closed = false;
+
+  LegacyLogMigrator(RocksStorageService storage) {
+    this.storage = storage;
+  }
+
+  void start() {
+    migrationEs.submit(this::migrateAll);
+  }
+
+  private void migrateAll() {
+    logger.info("migrating the legacy operation logs");
+    long users = 0;
+    try (RocksIterator it = storage.keyIterator()) {
+      for (it.seekToFirst(); it.isValid() && !closed; it.next()) {
+        migrate(new String(it.key(), Charset.defaultCharset()));
+        users++;
+      }
+    } catch (RocksDBException e) {
+      logger.error("legacy operation log migration failed", e);
+      return;
+    } catch (InterruptedException e) {
+      logger.warn("legacy operation log migration interrupted");
+      return;
+    }
+    if (closed) return;
+    storage.legacyLogMigrated();
+    logger.info("legacy operation logs of {} users migrated", users);
+  }
+
+  private void migrate(String userId) throws RocksDBException, InterruptedException {
+    UserLockManager lockManager = UserLockManager.getInstance();
+    long timeout = DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT);
+    while (!closed) {
+      if (lockManager.tryWriteLock(userId, timeout)) {
+        try {
+          storage.migrate(userId);
+          return;
+        } finally {
+          lockManager.releaseWriteLock(userId);
+        }
+      }
+      Thread.sleep(timeout);
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    migrationEs.shutdown();
+    try {
+      //the storage is closed right after, so the in-progress migration must not touch it anymore
+      migrationEs.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
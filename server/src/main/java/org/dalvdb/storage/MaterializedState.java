@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import org.dalvdb.common.util.ByteUtil;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Keeps the current value of every (userId, key) pair in the 'state' column family, so reading a value is a single
+ * point lookup instead of replaying the user's operation log.
+ * <p>
+ * Values are stored in the same format {@link StorageService#getValue(String, String)} returns: a sequence of
+ * 4 bytes length followed by the value bytes, one entry per item. This class does not write anything by itself, the
+ * caller provides the {@link WriteBatch} which also carries the log updates, so the log and the state are always
+ * persisted atomically.
+ */
+class MaterializedState {
+  private static final byte SEPARATOR = 0;
+
+  private final RocksDB rocksDB;
+  private final ColumnFamilyHandle stateCf;
+
+  MaterializedState(RocksDB rocksDB, ColumnFamilyHandle stateCf) {
+    this.rocksDB = rocksDB;
+    this.stateCf = stateCf;
+  }
+
+  /**
+   * apply the operations on the current state of the user and add the resulting changes into the write batch
+   *
+   * @param userId the user identification
+   * @param ops    operations in the order they are going to be appended to the user's log
+   * @param wb     the write batch which carries the log changes
+   */
+  void apply(String userId, List<Common.Operation> ops, WriteBatch wb) throws RocksDBException {
+    Map<String, List<ByteString>> changes = new HashMap<>();
+    for (Common.Operation op : ops)
+      apply(userId, op, changes);
+    write(userId, changes, wb);
+  }
+
+  /**
+   * Get the current value of a key
+   *
+   * @param userId the user identification
+   * @param key    the key to query
+   * @return the value in the {@link StorageService#getValue(String, String)} format or an empty ByteString if the key
+   * does not have any value
+   */
+  ByteString get(String userId, String key) throws RocksDBException {
+    byte[] val = rocksDB.get(stateCf, stateKey(userId, key));
+    if (val == null) return ByteString.EMPTY;
+    return ByteString.copyFrom(val);
+  }
+
+  /**
+   * Remove all the keys of a user
+   */
+  void delete(String userId, WriteBatch wb) throws RocksDBException {
+    byte[] userBytes = userId.getBytes(Charset.defaultCharset());
+    wb.deleteRange(stateCf, prefix(userBytes, SEPARATOR), prefix(userBytes, (byte) (SEPARATOR + 1)));
+  }
+
+  /**
+   * Rebuild the state of a user from scratch by replaying all the operations of the user's log
+   *
+   * @param userId the user identification
+   * @param ops    the whole log of the user, in order
+   * @param wb     the write batch to add the changes into
+   */
+  void rebuild(String userId, List<Common.Operation> ops, WriteBatch wb) throws RocksDBException {
+    delete(userId, wb);
+    Map<String, List<ByteString>> changes = new HashMap<>();
+    for (Common.Operation op : ops)
+      apply(null, op, changes);
+    write(userId, changes, wb);
+  }
+
+  /**
+   * apply a single operation on the in-progress changes, when userId is null the current persisted state is ignored
+   */
+  private void apply(String userId, Common.Operation op, Map<String, List<ByteString>> changes)
+      throws RocksDBException {
+    switch (op.getType()) {
+      case PUT:
+        List<ByteString> single = new ArrayList<>(1);
+        single.add(op.getVal());
+        changes.put(op.getKey(), single);
+        break;
+      case DEL:
+        changes.put(op.getKey(), new ArrayList<ByteString>());
+        break;
+      case ADD_TO_LIST:
+        List<ByteString> list = current(userId, op.getKey(), changes);
+        if (!list.contains(op.getVal()))
+          list.add(op.getVal());
+        break;
+      case REMOVE_FROM_LIST:
+        current(userId, op.getKey(), changes).remove(op.getVal());
+        break;
+      case SNAPSHOT:
+      default:
+        break;
+    }
+  }
+
+  private List<ByteString> current(String userId, String key, Map<String, List<ByteString>> changes)
+      throws RocksDBException {
+    List<ByteString> list = changes.get(key);
+    if (list == null) {
+      list = new ArrayList<>();
+      if (userId != null) {
+        List<byte[]> persisted = ByteUtil.decodeList(rocksDB.get(stateCf, stateKey(userId, key)));
+        if (persisted != null)
+          for (byte[] val : persisted)
+            list.add(ByteString.copyFrom(val));
+      }
+      changes.put(key, list);
+    }
+    return list;
+  }
+
+  private void write(String userId, Map<String, List<ByteString>> changes, WriteBatch wb) throws RocksDBException {
+    for (Map.Entry<String, List<ByteString>> e : changes.entrySet()) {
+      if (e.getValue().isEmpty())
+        wb.delete(stateCf, stateKey(userId, e.getKey()));
+      else
+        wb.put(stateCf, stateKey(userId, e.getKey()), encode(e.getValue()));
+    }
+  }
+
+  private static byte[] encode(List<ByteString> vals) {
+    int len = 0;
+    for (ByteString val : vals)
+      len += 4 + val.size();
+    ByteBuffer buffer = ByteBuffer.allocate(len);
+    for (ByteString val : vals) {
+      buffer.putInt(val.size());
+      val.copyTo(buffer);
+    }
+    return buffer.array();
+  }
+
+  private static byte[] stateKey(String userId, String key) {
+    byte[] userBytes = userId.getBytes(Charset.defaultCharset());
+    byte[] keyBytes = key.getBytes(Charset.defaultCharset());
+    byte[] result = new byte[userBytes.length + 1 + keyBytes.length];
+    System.arraycopy(userBytes, 0, result, 0, userBytes.length);
+    result[userBytes.length] = SEPARATOR;
+    System.arraycopy(keyBytes, 0, result, userBytes.length + 1, keyBytes.length);
+    return result;
+  }
+
+  private static byte[] prefix(byte[] userBytes, byte last) {
+    byte[] result = Arrays.copyOf(userBytes, userBytes.length + 1);
+    result[userBytes.length] = last;
+    return result;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collapse the operations of a single batch which are superseded by a later operation of the same batch, before they
+ * are appended to the log.
+ * <p>
+ * The operations of a batch are appended atomically, so no client can observe the log between two of them and dropping
+ * the superseded ones leaves the state built from any snapshot unchanged. An operation is superseded by a later PUT or
+ * DEL of the same key, and an ADD_TO_LIST by a later REMOVE_FROM_LIST of its value. A PUT is not superseded by a
+ * REMOVE_FROM_LIST, as it also drops the other items the list had before the batch. DEL and REMOVE_FROM_LIST are kept
+ * since they apply to the state before the batch.
+ * Snapshots are always kept and no operation is collapsed across a snapshot, as a client may reference it.
+ */
+final class OperationCollapser {
+  private OperationCollapser() {
+  }
+
+  /**
+   * @return the operations which are not superseded in the batch, in their original order, or the batch itself if
+   * nothing is superseded
+   */
+  static List<Common.Operation> collapse(List<Common.Operation> ops) {
+    if (ops.size() < 2) return ops;
+    Set<String> replaced = new HashSet<>();
+    Map<String, Set<ByteString>> removed = new HashMap<>();
+    List<Common.Operation> kept = new ArrayList<>(ops.size());
+    for (int i = ops.size() - 1; i >= 0; i--) {
+      Common.Operation op = ops.get(i);
+      if (op.getType() == Common.OpType.SNAPSHOT) {
+        replaced.clear();
+        removed.clear();
+        kept.add(op);
+        continue;
+      }
+      if (replaced.contains(op.getKey()))
+        continue;
+      if (op.getType() == Common.OpType.ADD_TO_LIST &&
+          removed.getOrDefault(op.getKey(), Collections.emptySet()).contains(op.getVal()))
+        continue;
+      kept.add(op);
+      if (op.getType() == Common.OpType.PUT || op.getType() == Common.OpType.DEL)
+        replaced.add(op.getKey());
+      else if (op.getType() == Common.OpType.REMOVE_FROM_LIST)
+        removed.computeIfAbsent(op.getKey(), k -> new HashSet<>()).add(op.getVal());
+    }
+    if (kept.size() == ops.size()) return ops;
+    Collections.reverse(kept);
+    return kept;
+  }
+}
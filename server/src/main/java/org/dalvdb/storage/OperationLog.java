@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import dalv.common.Common;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The per-user operation log, stored in the 'log' column family with one record per operation.
+ * <p>
+ * Each record is keyed by {@code userId | 0x00 | seqNo} where seqNo is an 8 bytes big-endian number starting from 1
+ * and increasing with every operation appended to the user's log, the value is the serialized
+ * {@link Common.Operation}. Since records of a user are adjacent and ordered by their seqNo, reading the tail of a
+ * log is a seek followed by a short range scan.
+ */
+class OperationLog {
+  private static final byte SEPARATOR = 0;
+  private static final int SEQ_LEN = 8;
+
+  private final RocksDB rocksDB;
+  private final ColumnFamilyHandle logCf;
+
+  OperationLog(RocksDB rocksDB, ColumnFamilyHandle logCf) {
+    this.rocksDB = rocksDB;
+    this.logCf = logCf;
+  }
+
+  /**
+   * Visit a record of the log
+   */
+  interface RecordVisitor {
+    /**
+     * @param seq    the sequence number of the record
+     * @param record the serialized operation
+     * @return true to continue the scan, false to stop it
+     */
+    boolean visit(long seq, byte[] record) throws RocksDBException;
+  }
+
+  /**
+   * Visit the user ids which have at least one record in the log
+   */
+  interface UserVisitor {
+    void visit(String userId) throws RocksDBException;
+  }
+
+  /**
+   * @return the sequence number of the last record of the user or 0 if the user's log is empty
+   */
+  long lastSeq(String userId) throws RocksDBException {
+    byte[] user = userId.getBytes(Charset.defaultCharset());
+    try (RocksIterator it = rocksDB.newIterator(logCf)) {
+      it.seekForPrev(prefix(user, (byte) (SEPARATOR + 1)));
+      if (it.isValid() && belongsTo(it.key(), user))
+        return seqOf(it.key());
+      return 0;
+    }
+  }
+
+  /**
+   * Append the operations at the end of the user's log. The sequence numbers are assigned based on the persisted
+   * log, so the caller must hold the user's write lock and must not append to the same user twice in a single batch.
+   *
+   * @return the sequence number of the last appended record
+   */
+  long append(String userId, List<Common.Operation> ops, WriteBatch wb) throws RocksDBException {
+    long seq = lastSeq(userId);
+    for (Common.Operation op : ops)
+      wb.put(logCf, recordKey(userId, ++seq), op.toByteArray());
+    return seq;
+  }
+
+  /**
+   * @return the serialized operation at the provided sequence number, or null if there is no such record
+   */
+  byte[] get(String userId, long seq) throws RocksDBException {
+    return rocksDB.get(logCf, recordKey(userId, seq));
+  }
+
+  /**
+   * Scan the records of the user with sequence number in the range of (fromSeq, toSeq] in ascending order
+   */
+  void scan(String userId, long fromSeq, long toSeq, RecordVisitor visitor) throws RocksDBException {
+    try (RocksIterator it = rocksDB.newIterator(logCf)) {
+      scan(it, userId, fromSeq, toSeq, visitor);
+    }
+  }
+
+  /**
+   * Scan the records of the user with sequence number in the range of (fromSeq, toSeq] in ascending order, as seen by
+   * the provided read options
+   */
+  void scan(String userId, long fromSeq, long toSeq, ReadOptions ro, RecordVisitor visitor) throws RocksDBException {
+    try (RocksIterator it = rocksDB.newIterator(logCf, ro)) {
+      scan(it, userId, fromSeq, toSeq, visitor);
+    }
+  }
+
+  private void scan(RocksIterator it, String userId, long fromSeq, long toSeq, RecordVisitor visitor)
+      throws RocksDBException {
+    byte[] user = userId.getBytes(Charset.defaultCharset());
+    for (it.seek(recordKey(user, fromSeq + 1)); it.isValid() && belongsTo(it.key(), user); it.next()) {
+      long seq = seqOf(it.key());
+      if (seq > toSeq || !visitor.visit(seq, it.value()))
+        break;
+    }
+  }
+
+  /**
+   * Scan the records of the user with sequence number less than or equal to toSeq in descending order
+   */
+  void reverseScan(String userId, long toSeq, RecordVisitor visitor) throws RocksDBException {
+    try (RocksIterator it = rocksDB.newIterator(logCf)) {
+      byte[] user = userId.getBytes(Charset.defaultCharset());
+      for (it.seekForPrev(recordKey(user, toSeq)); it.isValid() && belongsTo(it.key(), user); it.prev()) {
+        if (!visitor.visit(seqOf(it.key()), it.value()))
+          break;
+      }
+    }
+  }
+
+  /**
+   * Visit all the users which have a log, each user visited once
+   */
+  void forEachUser(UserVisitor visitor) throws RocksDBException {
+    try (RocksIterator it = rocksDB.newIterator(logCf)) {
+      it.seekToFirst();
+      while (it.isValid()) {
+        byte[] user = Arrays.copyOf(it.key(), it.key().length - SEQ_LEN - 1);
+        visitor.visit(new String(user, Charset.defaultCharset()));
+        it.seek(prefix(user, (byte) (SEPARATOR + 1)));
+      }
+    }
+  }
+
+  /**
+   * Remove a single record
+   */
+  void delete(String userId, long seq, WriteBatch wb) throws RocksDBException {
+    wb.delete(logCf, recordKey(userId, seq));
+  }
+
+  /**
+   * Remove the whole log of a user
+   */
+  void delete(String userId, WriteBatch wb) throws RocksDBException {
+    byte[] user = userId.getBytes(Charset.defaultCharset());
+    wb.deleteRange(logCf, prefix(user, SEPARATOR), prefix(user, (byte) (SEPARATOR + 1)));
+  }
+
+  static byte[] recordKey(String userId, long seq) {
+    return recordKey(userId.getBytes(Charset.defaultCharset()), seq);
+  }
+
+  private static byte[] recordKey(byte[] user, long seq) {
+    return ByteBuffer.allocate(user.length + 1 + SEQ_LEN).put(user).put(SEPARATOR).putLong(seq).array();
+  }
+
+  private static boolean belongsTo(byte[] key, byte[] user) {
+    if (key.length != user.length + 1 + SEQ_LEN || key[user.length] != SEPARATOR)
+      return false;
+    for (int i = 0; i < user.length; i++)
+      if (key[i] != user[i]) return false;
+    return true;
+  }
+
+  /**
+   * @return the user id of a key in the {@code userId | 0x00 | seqNo} format
+   */
+  static String userOf(byte[] key) {
+    return new String(key, 0, key.length - SEQ_LEN - 1, Charset.defaultCharset());
+  }
+
+  static long seqOf(byte[] key) {
+    return ByteBuffer.wrap(key, key.length - SEQ_LEN, SEQ_LEN).getLong();
+  }
+
+  private static byte[] prefix(byte[] user, byte last) {
+    byte[] result = Arrays.copyOf(user, user.length + 1);
+    result[user.length] = last;
+    return result;
+  }
+}
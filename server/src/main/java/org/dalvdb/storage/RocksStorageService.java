@@ -18,10 +18,12 @@
 package org.dalvdb.storage;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 import dalv.common.Common;
 import org.dalvdb.DalvConfig;
 import org.dalvdb.common.util.ByteUtil;
 import org.dalvdb.common.util.OpUtil;
+import org.dalvdb.common.util.OperationView;
 import org.dalvdb.exception.InternalServerException;
 import org.dalvdb.lock.UserLockManager;
 import org.rocksdb.*;
@@ -36,37 +38,77 @@ import java.util.stream.Collectors;
 /**
  * The default implementation of {@link StorageService} which employs RocksDB as the internal storage engine to store data on
  * permanent storage
+ * <p>
+ * Operations of each user are kept in the 'log' column family, one record per operation (see {@link OperationLog}).
+ * Data directories created by the older versions keep the whole log of a user as a single merge-appended value in the
+ * 'default' column family, those users are moved to the new layout by {@link LegacyLogMigrator} in the background or
+ * on their first write, whichever comes first.
  */
 public class RocksStorageService implements StorageService {
   private static final Logger logger = LoggerFactory.getLogger(RocksStorageService.class);
+  private static final byte[] META_CF = "meta".getBytes();
+  private static final byte[] STATE_CF = "state".getBytes();
+  private static final byte[] LOG_CF = "log".getBytes();
+  private static final byte[] BACKLOG_CF = "backlog".getBytes();
+  private static final byte[] STATE_READY_KEY = "dalv.stateReady".getBytes();
+  private static final byte[] SNAPSHOT_INDEX_READY_KEY = "dalv.snapshotIndexReady".getBytes();
+  private static final byte[] BACKLOG_READY_KEY = "dalv.backlogReady".getBytes();
+  private static final byte[] COMPACTION_MODE_KEY = "dalv.compactionMode".getBytes();
+  private static final byte BACKGROUND_MODE = 0;
+  private static final byte INLINE_MODE = 1;
+  //users whose backlog marks are written in one batch when the backlog is rebuilt
+  private static final int BACKLOG_REBUILD_CHUNK = 1024;
+  //passes over the backlog before giving up switching to the inline compaction
+  private static final int COMPACTION_MODE_SWITCH_ROUNDS = 10;
   private final RocksDB rocksDB;
+  private final RocksTuning tuning = new RocksTuning();
+  private final SnapshotIds snapshotIds;
+  private final CompactionIndex compactionIndex;
+  private final InlineCompaction inlineCompaction;
+  private volatile boolean inlineMode = false;
+  private final UserCache cache = new UserCache(DalvConfig.getLong(DalvConfig.STORAGE_CACHE_SIZE),
+      DalvConfig.getInt(DalvConfig.STORAGE_CACHE_MAX_TAIL));
   private final WriteOptions wo;
-  private final Map<String, Queue<Common.Operation>> mirroredUser = new HashMap<>();
+  private final DurableWriter writer;
   private final ColumnFamilyHandle metaData;
+  private final ColumnFamilyHandle stateCf;
+  private final ColumnFamilyHandle logCf;
+  private final ColumnFamilyHandle backlogCf;
+  private final MaterializedState state;
+  private final OperationLog operationLog;
+  private final CompactionBacklog backlog;
   private final CompactionScheduler compactionScheduler;
+  private final LegacyLogMigrator legacyLogMigrator;
+  private volatile boolean legacyLogMigrated;
 
   public RocksStorageService() {
     String dataDir = DalvConfig.getStr(DalvConfig.DATA_DIR);
     RocksDB db = null;
     WriteOptions writeOptions = null;
     ColumnFamilyHandle metadataHandler = null;
+    ColumnFamilyHandle stateHandler = null;
+    ColumnFamilyHandle logHandler = null;
+    ColumnFamilyHandle backlogHandler = null;
+    List<ColumnFamilyHandle> hs = new LinkedList<>();
+    boolean stateReady = false;
+    boolean snapshotIndexReady = false;
+    boolean backlogReady = false;
     try {
-      Options options = new Options();
-      options.setCreateIfMissing(true);
-      options.setCreateMissingColumnFamilies(true);
-      options.setMergeOperator(new StringAppendOperator((char) (0)));
-      List<byte[]> cfs = RocksDB.listColumnFamilies(options, dataDir);
-      if (cfs.size() == 2) { //meta and default column families exist
-        List<ColumnFamilyHandle> hs = new LinkedList<>();
-        List<ColumnFamilyDescriptor> cfdList = new LinkedList<>();
-        cfdList.add(new ColumnFamilyDescriptor("default".getBytes(), new ColumnFamilyOptions(options)));
-        cfdList.add(new ColumnFamilyDescriptor("meta".getBytes(), new ColumnFamilyOptions(options)));
-        db = RocksDB.open(dataDir, cfdList, hs);
-        metadataHandler = hs.get(0);
-      } else {
-        db = RocksDB.open(options, dataDir);
-        metadataHandler = db.createColumnFamily(new ColumnFamilyDescriptor("meta".getBytes()));
-      }
+      tuning.log();
+      List<ColumnFamilyDescriptor> cfdList = new LinkedList<>();
+      cfdList.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, tuning.columnFamilyOptions(true)));
+      cfdList.add(new ColumnFamilyDescriptor(META_CF, tuning.columnFamilyOptions(true)));
+      cfdList.add(new ColumnFamilyDescriptor(STATE_CF, tuning.columnFamilyOptions(true)));
+      cfdList.add(new ColumnFamilyDescriptor(LOG_CF, tuning.columnFamilyOptions(false)));
+      cfdList.add(new ColumnFamilyDescriptor(BACKLOG_CF, tuning.columnFamilyOptions(false)));
+      db = RocksDB.open(tuning.dbOptions(), dataDir, cfdList, hs);
+      metadataHandler = hs.get(1);
+      stateHandler = hs.get(2);
+      logHandler = hs.get(3);
+      backlogHandler = hs.get(4);
+      stateReady = db.get(metadataHandler, STATE_READY_KEY) != null;
+      snapshotIndexReady = db.get(metadataHandler, SNAPSHOT_INDEX_READY_KEY) != null;
+      backlogReady = db.get(metadataHandler, BACKLOG_READY_KEY) != null;
       writeOptions = new WriteOptions();
       writeOptions.setSync(true);
     } catch (RocksDBException e) {
@@ -75,29 +117,187 @@ public class RocksStorageService implements StorageService {
     }
     this.rocksDB = db;
     this.wo = writeOptions;
+    this.writer = new DurableWriter(db, hs);
     this.metaData = metadataHandler;
+    this.stateCf = stateHandler;
+    this.logCf = logHandler;
+    this.backlogCf = backlogHandler;
+    this.state = new MaterializedState(db, stateHandler);
+    this.operationLog = new OperationLog(db, logHandler);
+    this.backlog = new CompactionBacklog(db, backlogHandler);
+    this.snapshotIds = new SnapshotIds(db, metadataHandler);
+    this.compactionIndex = new CompactionIndex(db, metadataHandler);
+    this.inlineCompaction = new InlineCompaction(compactionIndex, operationLog);
+    try (RocksIterator it = keyIterator()) {
+      it.seekToFirst();
+      this.legacyLogMigrated = !it.isValid();
+    }
+    if (!stateReady)
+      rebuildState();
+    if (!snapshotIndexReady)
+      rebuildSnapshotIndex();
+    if (!backlogReady)
+      rebuildBacklog();
+    this.legacyLogMigrator = new LegacyLogMigrator(this);
+    if (!legacyLogMigrated)
+      this.legacyLogMigrator.start();
     this.compactionScheduler = new CompactionScheduler(this);
+    initCompactionMode();
     this.compactionScheduler.startScheduler();
   }
 
+  /**
+   * Switch to the configured {@link DalvConfig#COMPACTION_MODE}. The inline compaction needs the live records of all
+   * the keys in the {@link CompactionIndex}, while the background compaction indexes only the compacted prefix of the
+   * logs, so switching to the inline mode first compacts the users of the backlog in the background mode. A user
+   * whose compaction is skipped stays in the backlog and is retried; if some are still there after a few passes the
+   * store keeps the background mode until the next start.
+   */
+  private void initCompactionMode() {
+    boolean inline = "inline".equalsIgnoreCase(DalvConfig.getStr(DalvConfig.COMPACTION_MODE));
+    try {
+      byte[] stored = rocksDB.get(metaData, COMPACTION_MODE_KEY);
+      if (inline && (stored == null || stored[0] != INLINE_MODE)) {
+        logger.info("compacting the backlog before switching to the inline compaction");
+        if (!compactBacklog()) {
+          logger.error("some users are still waiting for compaction, keeping the background compaction");
+          inline = false;
+        }
+      }
+      rocksDB.put(metaData, wo, COMPACTION_MODE_KEY, new byte[]{inline ? INLINE_MODE : BACKGROUND_MODE});
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    }
+    this.inlineMode = inline;
+    logger.info("compaction mode: {}", inline ? "inline" : "background");
+  }
+
+  /**
+   * @return true if every user of the backlog is compacted
+   */
+  private boolean compactBacklog() {
+    for (int round = 0; round < COMPACTION_MODE_SWITCH_ROUNDS; round++) {
+      List<String> pending = new ArrayList<>();
+      backlog.forEach((userId, ops) -> pending.add(userId));
+      if (pending.isEmpty())
+        return true;
+      if (round > 0) {
+        logger.warn("{} users were not compacted, retrying", pending.size());
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+      for (String userId : pending)
+        compact(userId);
+    }
+    List<String> pending = new ArrayList<>();
+    backlog.forEach((userId, ops) -> pending.add(userId));
+    return pending.isEmpty();
+  }
+
+  /**
+   * Rebuild the materialized state of all the users from their operation logs, used to bring the 'state' column
+   * family up to date for the data directories created before it existed
+   */
+  private void rebuildState() {
+    logger.info("rebuilding the materialized state from the operation logs");
+    long[] users = {0};
+    try (RocksIterator it = keyIterator()) {
+      OperationLog.UserVisitor rebuild = userId -> {
+        WriteBatch wb = new WriteBatch();
+        state.rebuild(userId, readAll(userId), wb);
+        rocksDB.write(wo, wb);
+        users[0]++;
+      };
+      for (it.seekToFirst(); it.isValid(); it.next())
+        rebuild.visit(new String(it.key(), Charset.defaultCharset()));
+      operationLog.forEachUser(rebuild);
+      rocksDB.put(metaData, wo, STATE_READY_KEY, new byte[]{1});
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    }
+    logger.info("materialized state rebuilt for {} users", users[0]);
+  }
+
+  /**
+   * Index the position of all the snapshots in the sequence-keyed log, used for the data directories which their
+   * log was written before the snapshot index existed. Legacy logs are indexed when they are migrated.
+   */
+  private void rebuildSnapshotIndex() {
+    logger.info("rebuilding the snapshot index");
+    try {
+      OperationView op = new OperationView();
+      operationLog.forEachUser(userId -> {
+        WriteBatch wb = new WriteBatch();
+        operationLog.scan(userId, 0, Long.MAX_VALUE, (seq, record) -> {
+          op.wrapHeader(record);
+          if (op.getType() == Common.OpType.SNAPSHOT)
+            indexSnapshot(userId, op.getSnapshotId(), seq, wb);
+          return true;
+        });
+        rocksDB.write(wo, wb);
+      });
+      rocksDB.put(metaData, wo, SNAPSHOT_INDEX_READY_KEY, new byte[]{1});
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    }
+    logger.info("snapshot index rebuilt");
+  }
+
+  /**
+   * Add all the users which have a log to the compaction backlog, used for the data directories created before the
+   * backlog existed. Users of the legacy layout are added when they are migrated.
+   * <p>
+   * The marks are written in batches of {@link #BACKLOG_REBUILD_CHUNK} users, so the memory used does not depend on
+   * the number of users. A mark is keyed by the user and its last sequence number, so if the rebuild is interrupted
+   * the next startup rewrites the same marks.
+   */
+  private void rebuildBacklog() {
+    logger.info("rebuilding the compaction backlog");
+    long[] users = {0};
+    try {
+      WriteBatch[] wb = {new WriteBatch()};
+      operationLog.forEachUser(userId -> {
+        backlog.add(userId, operationLog.lastSeq(userId), 1, wb[0]);
+        if (++users[0] % BACKLOG_REBUILD_CHUNK == 0) {
+          rocksDB.write(wo, wb[0]);
+          wb[0].close();
+          wb[0] = new WriteBatch();
+        }
+      });
+      wb[0].put(metaData, BACKLOG_READY_KEY, new byte[]{1});
+      rocksDB.write(wo, wb[0]);
+      wb[0].close();
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    }
+    logger.info("compaction backlog rebuilt for {} users", users[0]);
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
-  public boolean handleOperations(String userId, List<Common.Operation> opsList, int lastSnapshotId) {
-    if (checkForConflict(get(userId, lastSnapshotId), opsList))
-      return false;
+  public boolean handleOperations(String userId, List<Common.Operation> opsList, int lastSnapshotId,
+                                  Common.Durability durability) {
     try {
-      Queue<Common.Operation> mirrorQueue = mirroredUser.get(userId);
-      byte[] key = userId.getBytes(Charset.defaultCharset());
+      if (hasConflict(userId, lastSnapshotId, opsList))
+        return false;
+      migrate(userId);
+      List<Common.Operation> ops = OperationCollapser.collapse(opsList);
       WriteBatch wb = new WriteBatch();
-      for (Common.Operation operation : opsList) {
-        wb.merge(key, ByteUtil.opToByte(operation));
-        if (mirrorQueue != null) mirrorQueue.offer(operation);
-      }
+      long lastSeq = operationLog.append(userId, ops, wb);
+      backlog.add(userId, lastSeq, ops.size(), wb);
+      //the cached tail keeps the superseded operations, replaying them still results in the same state
+      if (inlineMode)
+        inlineCompaction.apply(userId, lastSeq, ops, wb);
+      state.apply(userId, ops, wb);
 
-      rocksDB.write(wo, wb);
-      compactionScheduler.updateReceived(userId);
+      commitAppended(userId, ops, wb, writer.resolve(durability, opsList));
+      compactionScheduler.updateReceived(userId, ops.size());
       return true;
     } catch (RocksDBException e) {
       throw new InternalServerException(e);
@@ -108,20 +308,89 @@ public class RocksStorageService implements StorageService {
    * {@inheritDoc}
    */
   @Override
-  public void addOperation(String userId, Common.Operation operation) {
+  public void addOperations(String userId, List<Common.Operation> operations, Common.Durability durability) {
     try {
-      byte[] key = userId.getBytes(Charset.defaultCharset());
-      rocksDB.merge(key, ByteUtil.opToByte(operation));
-
-      Queue<Common.Operation> mirrorQueue = mirroredUser.get(userId);
-      if (mirrorQueue != null) mirrorQueue.offer(operation);
+      migrate(userId);
+      List<Common.Operation> ops = OperationCollapser.collapse(operations);
+      WriteBatch wb = new WriteBatch();
+      long lastSeq = operationLog.append(userId, ops, wb);
+      backlog.add(userId, lastSeq, ops.size(), wb);
+      if (inlineMode)
+        inlineCompaction.apply(userId, lastSeq, ops, wb);
+      state.apply(userId, ops, wb);
+      commitAppended(userId, ops, wb, writer.resolve(durability, operations));
 
-      compactionScheduler.updateReceived(userId);
+      compactionScheduler.updateReceived(userId, ops.size());
     } catch (RocksDBException e) {
       throw new InternalServerException(e);
     }
   }
 
+  /**
+   * Commit the batch appending the operations to the user's log and add them to the cached tail. A reader which reads
+   * the log after the commit and caches it before the cache is updated would otherwise have the operations twice.
+   */
+  private void commitAppended(String userId, List<Common.Operation> ops, WriteBatch wb, Common.Durability durability)
+      throws RocksDBException {
+    cache.writing(userId);
+    try {
+      commit(userId, wb, durability);
+      cache.appended(userId, ops);
+    } finally {
+      cache.written(userId);
+    }
+  }
+
+  /**
+   * Check whether any of the keys of the new operations is modified after the lastSnapshotId. Only the type and the
+   * key of the records after the snapshot are read, none of them is deserialized.
+   */
+  private boolean hasConflict(String userId, int lastSnapshotId, List<Common.Operation> newOps)
+      throws RocksDBException {
+    byte[] legacy = legacyLog(userId);
+    if (legacy != null)
+      return checkForConflict(getLegacy(parseLegacy(legacy), lastSnapshotId), newOps);
+    List<Common.Operation> cached = cache.getTail(userId, lastSnapshotId);
+    if (cached != null)
+      return checkForConflict(cached, newOps);
+    Set<ByteString> newKeys = new HashSet<>();
+    for (Common.Operation op : newOps)
+      if (op.getType() != Common.OpType.SNAPSHOT)
+        newKeys.add(op.getKeyBytes());
+    try (ReadView readView = new ReadView()) {
+      long fromSeq = 0;
+      if (lastSnapshotId > 0) {
+        Long snapshotSeq = snapshotSeq(userId, lastSnapshotId, readView.ro);
+        if (snapshotSeq == null) return true;
+        fromSeq = snapshotSeq;
+      }
+      if (newKeys.isEmpty()) return false;
+      boolean[] conflict = {false};
+      OperationView view = new OperationView();
+      operationLog.scan(userId, fromSeq, Long.MAX_VALUE, readView.ro, (seq, record) -> {
+        conflict[0] = newKeys.contains(view.wrapHeader(record).getKeyBytes());
+        return !conflict[0];
+      });
+      return conflict[0];
+    }
+  }
+
+  /**
+   * A point in time view of the database. Compaction deletes records without holding the user's lock, so a read
+   * made of several lookups, like finding a snapshot and then scanning the log after it, is done on a view to see the
+   * log either before or after a compaction, never in between.
+   */
+  private final class ReadView implements AutoCloseable {
+    private final Snapshot snapshot = rocksDB.getSnapshot();
+    private final ReadOptions ro = new ReadOptions().setSnapshot(snapshot);
+
+    @Override
+    public void close() {
+      ro.close();
+      rocksDB.releaseSnapshot(snapshot);
+    }
+  }
+
   private boolean checkForConflict(List<Common.Operation> oldOps,
                                    List<Common.Operation> newOps) {
     if (oldOps.isEmpty()) return false;
@@ -137,112 +406,122 @@ public class RocksStorageService implements StorageService {
   @Override
   public List<Common.Operation> get(String userId, int lastSnapshotId) {
     try {
-      byte[] bytes = rocksDB.get(userId.getBytes(Charset.defaultCharset()));
-      Iterator<Common.Operation> operationIterator = ByteUtil.getReverseIterator(bytes);
-      LinkedList<Common.Operation> result = new LinkedList<>();
-      boolean foundSnapshot = false;
-      while (operationIterator.hasNext()) {
-        Common.Operation op = operationIterator.next();
-        if (op.getType() == Common.OpType.SNAPSHOT && op.getSnapshotId() == lastSnapshotId) {
-          foundSnapshot = true;
-          break;
+      byte[] legacy = legacyLog(userId);
+      if (legacy != null)
+        return getLegacy(parseLegacy(legacy), lastSnapshotId);
+      List<Common.Operation> cached = cache.getTail(userId, lastSnapshotId);
+      if (cached != null)
+        return cached;
+      long stamp = cache.stamp(userId);
+      int latestSnapshotId = snapshotIds.lastId(userId);
+      List<Common.Operation> result = new ArrayList<>();
+      long fromSeq = 0;
+      try (ReadView readView = new ReadView()) {
+        if (lastSnapshotId > 0) {
+          Long snapshotSeq = snapshotSeq(userId, lastSnapshotId, readView.ro);
+          //snapshot is not indexed, so it is either compacted away or never existed
+          if (snapshotSeq == null)
+            result.add(OpUtil.REMOVE_ALL_OP);
+          else
+            fromSeq = snapshotSeq;
         }
-        result.addFirst(op);
+        operationLog.scan(userId, fromSeq, Long.MAX_VALUE, readView.ro, (seq, record) -> {
+          result.add(parse(record));
+          return true;
+        });
       }
-      if (!foundSnapshot && lastSnapshotId > 0)
-        result.addFirst(OpUtil.REMOVE_ALL_OP);
+      if (lastSnapshotId == latestSnapshotId && (fromSeq > 0 || lastSnapshotId == 0))
+        cache.loadTail(userId, stamp, lastSnapshotId, result);
       return result;
     } catch (RocksDBException e) {
       throw new InternalServerException(e);
     }
   }
 
+  private List<Common.Operation> getLegacy(List<Common.Operation> ops, int lastSnapshotId) {
+    LinkedList<Common.Operation> result = new LinkedList<>();
+    ListIterator<Common.Operation> reverse = ops.listIterator(ops.size());
+    while (reverse.hasPrevious()) {
+      Common.Operation op = reverse.previous();
+      if (op.getType() == Common.OpType.SNAPSHOT && op.getSnapshotId() == lastSnapshotId)
+        return result;
+      result.addFirst(op);
+    }
+    if (lastSnapshotId > 0)
+      result.addFirst(OpUtil.REMOVE_ALL_OP);
+    return result;
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public ByteString getValue(String userId, String key) {
     try {
-      Iterator<Common.Operation> reverseOpsIterator =
-          ByteUtil.getReverseIterator(rocksDB.get(userId.getBytes(Charset.defaultCharset())));
-
-      Set<ByteString> additionToList = new HashSet<>();
-      Set<ByteString> deletionFromList = new HashSet<>();
-
-      int resultLen = 0;
-      while (reverseOpsIterator.hasNext()) {
-        Common.Operation op = reverseOpsIterator.next();
-        if (key.equals(op.getKey())) {
-          switch (op.getType()) {
-            case PUT:
-              additionToList.add(op.getVal());
-              resultLen += op.getVal().size();
-              return constructValue(additionToList, resultLen);
-            case DEL:
-              return constructValue(additionToList, resultLen);
-            case ADD_TO_LIST:
-              if (!deletionFromList.contains(op.getVal())) {
-                resultLen += op.getVal().size();
-                additionToList.add(op.getVal());
-              }
-              break;
-            case REMOVE_FROM_LIST:
-              deletionFromList.add(op.getVal());
-              break;
-          }
-        }
+      ByteString value = cache.getValue(userId, key);
+      if (value == null) {
+        long stamp = cache.stamp(userId);
+        value = state.get(userId, key);
+        cache.loadValue(userId, stamp, key, value);
       }
-      return constructValue(additionToList, resultLen);
+      return value;
     } catch (RocksDBException e) {
       throw new InternalServerException(e);
     }
   }
 
-  private ByteString constructValue(Set<ByteString> vals, int len) {
-    if (vals.isEmpty()) return ByteString.EMPTY;
-    //bufferSize = (total values len) + (4 byte for each value len)
-    ByteBuffer buffer = ByteBuffer.allocate(len + 4 * (vals.size()));
-    for (ByteString val : vals) {
-      buffer.putInt(val.size());
-      buffer.put(val.toByteArray());
-    }
-    return ByteString.copyFrom(buffer.array());
-  }
-
   /**
    * {@inheritDoc}
    */
   @Override
   public int snapshot(String userId) {
-    try {
-      WriteBatch wb = new WriteBatch();
-      int snapshotId = snapshot(userId, wb);
-      rocksDB.write(wo, wb);
-      return snapshotId;
-    } catch (RocksDBException e) {
-      throw new InternalServerException(e);
+    SnapshotIds.Counter counter = snapshotIds.get(userId);
+    //the sync path takes snapshots under the read lock, so concurrent snapshots of a user are serialized here
+    synchronized (counter) {
+      try {
+        migrate(userId);
+        WriteBatch wb = new WriteBatch();
+        int snapshotId = snapshot(userId, counter, wb);
+        commit(userId, wb);
+        counter.committed(snapshotId);
+        cache.snapshotted(userId, snapshotId);
+        return snapshotId;
+      } catch (RocksDBException e) {
+        throw new InternalServerException(e);
+      }
     }
   }
 
-  public int snapshot(String userId, WriteBatch wb) throws RocksDBException {
-    int snapshotId = lastSnapshotId(userId) + 1;
+  /**
+   * Append a new snapshot to the user's log in the batch, the caller must hold the counter's monitor and mark the
+   * counter committed once the batch is written
+   *
+   * @return the id of the new snapshot
+   */
+  private int snapshot(String userId, SnapshotIds.Counter counter, WriteBatch wb) throws RocksDBException {
+    int snapshotId = counter.lastId() + 1;
     Common.Operation op = Common.Operation.newBuilder().setType(Common.OpType.SNAPSHOT)
         .setSnapshotId(snapshotId).build();
-    wb.merge(userId.getBytes(Charset.defaultCharset()), ByteUtil.opToByte(op));
-    wb.put(metaData, (userId + ".lastSnapshotId").getBytes(Charset.defaultCharset()),
-        ByteBuffer.allocate(4).putInt(snapshotId).array());
+    long seq = operationLog.append(userId, Collections.singletonList(op), wb);
+    indexSnapshot(userId, snapshotId, seq, wb);
+    snapshotIds.put(counter, snapshotId, wb);
     return snapshotId;
   }
 
-  private int lastSnapshotId(String userId) {
-    try {
-      byte[] lastSnapShotId = rocksDB.get(metaData, (userId + ".lastSnapshotId").getBytes(Charset.defaultCharset()));
-      if (lastSnapShotId == null)
-        return 0;
-      return ByteBuffer.wrap(lastSnapShotId).getInt();
-    } catch (RocksDBException e) {
-      throw new InternalServerException(e);
-    }
+  private void indexSnapshot(String userId, int snapshotId, long seq, WriteBatch wb) throws RocksDBException {
+    wb.put(metaData, snapshotIndexKey(userId, snapshotId), ByteBuffer.allocate(8).putLong(seq).array());
+  }
+
+  /**
+   * @return the sequence number of the snapshot record in the user's log, or null if it is not in the log
+   */
+  private Long snapshotSeq(String userId, int snapshotId, ReadOptions ro) throws RocksDBException {
+    byte[] seq = rocksDB.get(metaData, ro, snapshotIndexKey(userId, snapshotId));
+    return seq == null ? null : ByteBuffer.wrap(seq).getLong();
+  }
+
+  private static byte[] snapshotIndexKey(String userId, int snapshotId) {
+    return (userId + ".snapshot." + snapshotId).getBytes(Charset.defaultCharset());
   }
 
   /**
@@ -250,120 +529,505 @@ public class RocksStorageService implements StorageService {
    */
   @Override
   public void delete(String userId) {
-    try {
-      rocksDB.delete(userId.getBytes(Charset.defaultCharset()));
-      rocksDB.delete(metaData, (userId + ".lastSnapshotId").getBytes(Charset.defaultCharset()));
-    } catch (RocksDBException e) {
-      throw new InternalServerException(e);
+    SnapshotIds.Counter counter = snapshotIds.get(userId);
+    //a compaction of the user in progress sees the counter replaced and drops its result
+    synchronized (counter) {
+      try {
+        WriteBatch wb = new WriteBatch();
+        wb.delete(userId.getBytes(Charset.defaultCharset()));
+        operationLog.delete(userId, wb);
+        snapshotIds.delete(userId, wb);
+        wb.deleteRange(metaData, (userId + ".snapshot.").getBytes(Charset.defaultCharset()),
+            (userId + ".snapshot/").getBytes(Charset.defaultCharset()));
+        state.delete(userId, wb);
+        compactionIndex.delete(userId, wb);
+        backlog.delete(userId, wb);
+        commit(userId, wb);
+        snapshotIds.remove(userId);
+        cache.invalidate(userId);
+      } catch (RocksDBException e) {
+        throw new InternalServerException(e);
+      }
     }
   }
 
   /**
    * {@inheritDoc}
+   * <p>
+   * The compaction is incremental, only the records appended since the previous compaction are scanned, and the
+   * records of the compacted prefix they supersede are found through the {@link CompactionIndex}.
+   * <p>
+   * The user is not locked while the log is read. The compacted watermark read at the beginning is the version of
+   * the user's compaction state, the result is merged back only if it is unchanged, see
+   * {@link #mergeBack(String, long, long, SnapshotIds.Counter, Compactor)}.
    */
   @Override
   public void compact(String userId) {
-    byte[] userKey = userId.getBytes(Charset.defaultCharset());
-    OpUtil.OperatorsReverseIterator iterator;
+    long watermark;
+    CompactionIndex.Prefix prefix;
+    SnapshotIds.Counter counter = snapshotIds.get(userId);
     try {
-      //it's a write lock because we start mirroring and we don't want any other write interfere this
-      if (UserLockManager.getInstance().tryWriteLock(userId, 10)) {
-        try {
-          iterator = new OpUtil.OperatorsReverseIterator(rocksDB.get(userKey));
-          //start mirroring
-          mirroredUser.put(userId, new LinkedList<>());
-        } catch (RocksDBException e) {
-          throw new InternalServerException(e);
-        } finally {
-          UserLockManager.getInstance().releaseWriteLock(userId);
-        }
-      } else return;
-    } catch (InterruptedException e) {
-      logger.error(e.getMessage(), e);
+      if (legacyLog(userId) != null && !migrateForCompaction(userId))
+        return;
+      watermark = operationLog.lastSeq(userId);
+      prefix = compactionIndex.prefix(userId);
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    }
+    if (watermark <= prefix.watermark) return;
+
+    //records after the watermark are appended concurrently and never touched by this compaction round
+    Compactor compactor = new Compactor(compactionScheduler.ioBudget());
+    try {
+      long compacted = prefix.watermark;
+      operationLog.reverseScan(userId, watermark, (seq, record) -> seq > compacted && compactor.visit(seq, record));
+      if (!compactor.interrupted)
+        mergePrefix(userId, watermark, prefix, compactor);
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    }
+    if (compactor.interrupted) {
+      logger.warn("compaction of {} interrupted", userId);
       return;
     }
+    mergeBack(userId, watermark, prefix.watermark, counter, compactor);
+  }
 
-    List<Common.Operation> result = compactOperations(iterator);
-    mergeBack(userId, result);
+  /**
+   * Migrate the legacy log of the user before compacting it, the user is queued again if its lock is busy
+   *
+   * @return true if the log is migrated
+   */
+  private boolean migrateForCompaction(String userId) throws RocksDBException {
+    try {
+      if (!UserLockManager.getInstance().tryWriteLock(userId, DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
+        compactionScheduler.updateReceived(userId);
+        return false;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    try {
+      migrate(userId);
+      return true;
+    } finally {
+      UserLockManager.getInstance().releaseWriteLock(userId);
+    }
   }
 
-  private List<Common.Operation> compactOperations(OpUtil.OperatorsReverseIterator iterator) {
-    Set<String> ignoreKeys = new HashSet<>();
-    Map<String, List<ByteString>> ignoreItemInList = new HashMap<>();
-    LinkedList<Common.Operation> result = new LinkedList<>();
-    boolean first = true;
-    while (iterator.hasNext()) {
-      Common.Operation op = iterator.next();
+  /**
+   * Find the records which are not needed to rebuild the latest state of the user, scanning the log backward.
+   * <p>
+   * A REMOVE_FROM_LIST supersedes the older ADD_TO_LIST records of the same item, but not a PUT of it: the PUT also
+   * dropped the items the list had before, so both are kept. A REMOVE_FROM_LIST is pending until the PUT or DEL
+   * before it is found, it is kept if that PUT wrote the removed item.
+   */
+  private static class Compactor implements OperationLog.RecordVisitor {
+    private final Set<String> ignoreKeys = new HashSet<>();
+    /**
+     * the REMOVE_FROM_LIST records newer than any PUT or DEL of the key found so far, per key and removed item
+     */
+    private final Map<String, Map<ByteString, List<Long>>> pendingRemoves = new HashMap<>();
+    /**
+     * the REMOVE_FROM_LIST records which survive, as they remove the item written by a PUT
+     */
+    private final Map<String, List<Long>> keptRemoves = new HashMap<>();
+    private final List<Long> garbage = new ArrayList<>();
+    private final List<Integer> garbageSnapshots = new ArrayList<>();
+    /**
+     * the records which survive, per key, in descending order
+     */
+    private final Map<String, List<Long>> live = new HashMap<>();
+    /**
+     * the snapshots which survive at the top of the log, in descending order
+     */
+    private final List<long[]> keptSnapshots = new ArrayList<>();
+    /**
+     * the new content of the {@link CompactionIndex}, filled by merging with the previous compacted prefix
+     */
+    private final Map<String, List<Long>> index = new HashMap<>();
+    private CompactionIndex.Prefix prefix;
+    private final OperationView view = new OperationView();
+    private final IoBudget ioBudget;
+    private boolean first = true;
+    private boolean snapshotKept = false;
+    private boolean interrupted = false;
+
+    private Compactor(IoBudget ioBudget) {
+      this.ioBudget = ioBudget;
+    }
+
+    /**
+     * Spend the bytes from the IO budget
+     *
+     * @return false if the compaction is interrupted
+     */
+    private boolean spend(long bytes) {
+      try {
+        ioBudget.acquire(bytes);
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        interrupted = true;
+        return false;
+      }
+    }
+
+    @Override
+    public boolean visit(long seq, byte[] record) {
+      if (!spend(record.length))
+        return false;
+      OperationView op = view.wrapHeader(record);
       if (first) {
         if (op.getType() == Common.OpType.SNAPSHOT) {
-          result.addFirst(op);
-          continue;
+          snapshotKept = true;
+          keptSnapshots.add(new long[]{seq, op.getSnapshotId()});
+          return true;
         }
         first = false;
       }
-      if (op.getType() == Common.OpType.SNAPSHOT || ignoreKeys.contains(op.getKey())) continue;
-      if ((op.getType() == Common.OpType.ADD_TO_LIST || op.getType() == Common.OpType.PUT) &&
-          ignoreItemInList.containsKey(op.getKey()) &&
-          ignoreItemInList.get(op.getKey()).contains(op.getVal()))
-        continue;
-      if (op.getType() != Common.OpType.DEL && op.getType() != Common.OpType.REMOVE_FROM_LIST)
-        result.addFirst(op);
-      if (op.getType() == Common.OpType.PUT || op.getType() == Common.OpType.DEL)
-        ignoreKeys.add(op.getKey());
-      else if (op.getType() == Common.OpType.REMOVE_FROM_LIST) {
-        ignoreItemInList.putIfAbsent(op.getKey(), new LinkedList<>());
-        ignoreItemInList.get(op.getKey()).add(op.getVal());
+      if (op.getType() == Common.OpType.SNAPSHOT) {
+        garbage.add(seq);
+        garbageSnapshots.add(op.getSnapshotId());
+        return true;
+      }
+      String key = op.getKey();
+      if (ignoreKeys.contains(key)) {
+        garbage.add(seq);
+        return true;
+      }
+      Map<ByteString, List<Long>> removes = pendingRemoves.get(key);
+      switch (op.getType()) {
+        case ADD_TO_LIST:
+          if (removes != null && removes.containsKey(op.getVal()))
+            garbage.add(seq);
+          else
+            live.computeIfAbsent(key, k -> new ArrayList<>()).add(seq);
+          break;
+        case REMOVE_FROM_LIST:
+          pendingRemoves.computeIfAbsent(key, k -> new HashMap<>())
+              .computeIfAbsent(op.getVal(), v -> new ArrayList<>()).add(seq);
+          break;
+        case PUT:
+          live.computeIfAbsent(key, k -> new ArrayList<>()).add(seq);
+          ignoreKeys.add(key);
+          resolveRemoves(key, op.getVal());
+          break;
+        case DEL:
+          garbage.add(seq);
+          ignoreKeys.add(key);
+          resolveRemoves(key, null);
+          break;
+        default:
+          break;
+      }
+      return true;
+    }
+
+    /**
+     * Keep the pending REMOVE_FROM_LIST records of the key which remove the item written by its PUT, the others
+     * remove an item the list no longer has
+     *
+     * @param put the value of the PUT, or null for a DEL or when there is no older record of the key
+     */
+    private void resolveRemoves(String key, ByteString put) {
+      Map<ByteString, List<Long>> removes = pendingRemoves.remove(key);
+      if (removes == null) return;
+      for (Map.Entry<ByteString, List<Long>> e : removes.entrySet()) {
+        if (e.getKey().equals(put))
+          keptRemoves.computeIfAbsent(key, k -> new ArrayList<>()).addAll(e.getValue());
+        else
+          garbage.addAll(e.getValue());
       }
     }
-    return result;
   }
 
-  private void mergeBack(String userId, List<Common.Operation> result) {
-    byte[] userKey = userId.getBytes(Charset.defaultCharset());
-    try {
-      if (UserLockManager.getInstance().tryWriteLock(userId, 10)) {
-        try {
-          if (!result.isEmpty() &&
-              result.get(result.size() - 1).getType() == Common.OpType.SNAPSHOT &&
-              !mirroredUser.get(userId).isEmpty())
-            result.remove(result.size() - 1);
-          result.addAll(mirroredUser.get(userId));
-          WriteBatch wb = new WriteBatch();
-          wb.delete(userKey);
-          boolean seeSnapshot = false;
-          for (Common.Operation operation : result) {
-            if (operation.getType() == Common.OpType.SNAPSHOT) seeSnapshot = true;
-            wb.merge(userKey, ByteUtil.opToByte(operation));
+  /**
+   * Apply the scanned tail on the previously compacted prefix. Only the live records of the keys touched by the tail
+   * are looked up, and only the ones which may be superseded by a removed list item are read. In the inline mode the
+   * writers have already done it, so only the pending REMOVE_FROM_LIST records and the snapshots are handled.
+   */
+  private void mergePrefix(String userId, long watermark, CompactionIndex.Prefix prefix, Compactor compactor)
+      throws RocksDBException {
+    Set<String> keys = new HashSet<>(compactor.pendingRemoves.keySet());
+    if (!inlineMode) {
+      keys.addAll(compactor.live.keySet());
+      keys.addAll(compactor.ignoreKeys);
+    }
+    OperationView view = new OperationView();
+    for (String key : keys) {
+      //the index has the records of the whole log if the inline mode was used before, the tail ones are re-added
+      long[] compacted = Arrays.stream(compactionIndex.liveRecords(userId, key))
+          .filter(seq -> seq <= prefix.watermark).toArray();
+      List<Long> live = new ArrayList<>();
+      if (compactor.ignoreKeys.contains(key)) {
+        for (long seq : compacted)
+          compactor.garbage.add(seq);
+      } else {
+        ByteString put = null;
+        Map<ByteString, List<Long>> removes = compactor.pendingRemoves.get(key);
+        for (long seq : compacted) {
+          if (removes == null) {
+            live.add(seq);
+            continue;
+          }
+          byte[] record = operationLog.get(userId, seq);
+          if (record == null) continue;
+          if (!compactor.spend(record.length)) return;
+          view.wrap(record);
+          if (view.getType() == Common.OpType.ADD_TO_LIST && removes.containsKey(view.getVal())) {
+            compactor.garbage.add(seq);
+          } else {
+            if (view.getType() == Common.OpType.PUT)
+              put = view.getVal();
+            live.add(seq);
           }
-          if (!seeSnapshot)
-            snapshot(userId, wb);
-          rocksDB.write(wo, wb);
-        } catch (RocksDBException e) {
-          throw new InternalServerException(e);
-        } finally {
-          UserLockManager.getInstance().releaseWriteLock(userId);
         }
+        compactor.resolveRemoves(key, put);
       }
-    } catch (InterruptedException e) {
-      logger.error(e.getMessage(), e);
+      if (inlineMode) continue;
+      live.addAll(compactor.live.getOrDefault(key, Collections.emptyList()));
+      live.addAll(compactor.keptRemoves.getOrDefault(key, Collections.emptyList()));
+      Collections.sort(live);
+      compactor.index.put(key, live);
+    }
+    List<long[]> snapshots = new ArrayList<>();
+    if (compactor.first) {
+      //the tail is made of snapshots only, so the ones at the top of the prefix are still at the top
+      snapshots.addAll(prefix.snapshots);
+    } else {
+      for (long[] snapshot : prefix.snapshots) {
+        compactor.garbage.add(snapshot[0]);
+        compactor.garbageSnapshots.add((int) snapshot[1]);
+      }
+    }
+    for (int i = compactor.keptSnapshots.size() - 1; i >= 0; i--)
+      snapshots.add(compactor.keptSnapshots.get(i));
+    compactor.prefix = new CompactionIndex.Prefix(watermark, snapshots);
+  }
+
+  /**
+   * Persist the result of the compaction with a compare-and-swap on the user's compacted watermark: the result is
+   * dropped only if another compaction of the user has been merged back, or the user has been deleted, since this one
+   * started. Both are checked and the batch is written while holding the monitor of the user's snapshot counter,
+   * which serializes it with the snapshots and the deletion of the user.
+   * <p>
+   * Deleting records needs no user lock, readers use a {@link ReadView}. When the compaction removes the snapshot at
+   * the top of the log, a new one is appended in the same batch, which requires the writers of the user to be excluded,
+   * so the user's read lock is taken first. If the user is too busy to get it within {@link DalvConfig#LOCK_TIMEOUT},
+   * the result is dropped and the user is queued again, like {@link #migrateForCompaction(String)} does, so a hot user
+   * never holds a compaction worker.
+   */
+  private void mergeBack(String userId, long watermark, long previousWatermark, SnapshotIds.Counter counter,
+                         Compactor compactor) {
+    //materialized state is left untouched, compaction never changes the value of a key
+    boolean locked = false;
+    try {
+      boolean needSnapshot = !compactor.snapshotKept && !hasSnapshotAfter(userId, watermark);
+      if (needSnapshot) {
+        if (!readLockForMergeBack(userId)) return;
+        locked = true;
+      }
+      WriteBatch wb = new WriteBatch();
+      for (long seq : compactor.garbage)
+        operationLog.delete(userId, seq, wb);
+      for (int snapshotId : compactor.garbageSnapshots)
+        wb.delete(metaData, snapshotIndexKey(userId, snapshotId));
+      for (Map.Entry<String, List<Long>> e : compactor.index.entrySet())
+        compactionIndex.putLiveRecords(userId, e.getKey(), e.getValue(), wb);
+      //the writers index the records they append in the inline mode, only the kept removes are added
+      if (inlineMode)
+        for (Map.Entry<String, List<Long>> e : compactor.keptRemoves.entrySet())
+          for (long seq : e.getValue())
+            compactionIndex.addLiveRecord(userId, e.getKey(), seq, wb);
+      compactionIndex.putPrefix(userId, compactor.prefix, wb);
+      backlog.compacted(userId, watermark, wb);
+      synchronized (counter) {
+        if (snapshotIds.get(userId) != counter || compactionIndex.prefix(userId).watermark != previousWatermark) {
+          logger.debug("compaction of {} is superseded, its result is dropped", userId);
+          return;
+        }
+        int snapshotId = 0;
+        //a sync may have appended a snapshot since it was checked
+        if (needSnapshot && !hasSnapshotAfter(userId, watermark))
+          snapshotId = snapshot(userId, counter, wb);
+        commit(userId, wb);
+        if (!compactor.garbage.isEmpty())
+          cache.invalidateTail(userId);
+        if (snapshotId > 0) {
+          counter.committed(snapshotId);
+          cache.snapshotted(userId, snapshotId);
+        }
+      }
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
     } finally {
-      //stop mirroring
-      mirroredUser.remove(userId);
+      if (locked)
+        UserLockManager.getInstance().releaseReadLock(userId);
+    }
+  }
+
+  /**
+   * Acquire the user's read lock for merging back a compaction, the user is queued again if its lock is busy
+   *
+   * @return false if the lock is not acquired and the compaction must be dropped
+   */
+  private boolean readLockForMergeBack(String userId) {
+    try {
+      if (!UserLockManager.getInstance().tryReadLock(userId, DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
+        logger.debug("the lock of {} is busy, its compaction is dropped and queued again", userId);
+        compactionScheduler.updateReceived(userId);
+        return false;
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
     }
   }
 
+  private boolean hasSnapshotAfter(String userId, long seq) throws RocksDBException {
+    boolean[] found = {false};
+    OperationView view = new OperationView();
+    operationLog.scan(userId, seq, Long.MAX_VALUE, (s, record) -> {
+      found[0] = view.wrapHeader(record).getType() == Common.OpType.SNAPSHOT;
+      return !found[0];
+    });
+    return found[0];
+  }
+
+  /**
+   * Read the whole log of a user, regardless of whether it is migrated to the new layout or not
+   */
+  private List<Common.Operation> readAll(String userId) throws RocksDBException {
+    byte[] legacy = legacyLog(userId);
+    if (legacy != null)
+      return parseLegacy(legacy);
+    List<Common.Operation> ops = new ArrayList<>();
+    operationLog.scan(userId, 0, Long.MAX_VALUE, (seq, record) -> {
+      ops.add(parse(record));
+      return true;
+    });
+    return ops;
+  }
+
+  /**
+   * Durably write the batch of the user, through the group commit pipeline when it is enabled
+   */
+  private void commit(String userId, WriteBatch wb) throws RocksDBException {
+    commit(userId, wb, Common.Durability.GROUP);
+  }
+
+  private void commit(String userId, WriteBatch wb, Common.Durability durability) throws RocksDBException {
+    writer.write(userId, wb, durability);
+  }
+
+  /**
+   * @return the cache of the decoded users' state, exposed for its hit and miss metrics
+   */
+  UserCache cache() {
+    return cache;
+  }
+
+  /**
+   * @return the last snapshot ids of the users, exposed for the number of counters kept in memory
+   */
+  SnapshotIds snapshotIds() {
+    return snapshotIds;
+  }
+
+  /**
+   * @return the writer which persists the batches, exposed for its durability metrics
+   */
+  DurableWriter writer() {
+    return writer;
+  }
+
+  private byte[] legacyLog(String userId) throws RocksDBException {
+    if (legacyLogMigrated) return null;
+    return rocksDB.get(userId.getBytes(Charset.defaultCharset()));
+  }
+
+  /**
+   * Move the log of a user from the legacy merge-appended value into the sequence-keyed log, do nothing if the
+   * user has already migrated.
+   * <p>
+   * The caller must hold the user's write lock.
+   *
+   * @param userId the user identification
+   */
+  void migrate(String userId) throws RocksDBException {
+    byte[] legacy = legacyLog(userId);
+    if (legacy == null) return;
+    List<Common.Operation> ops = parseLegacy(legacy);
+    WriteBatch wb = new WriteBatch();
+    long seq = operationLog.append(userId, ops, wb);
+    backlog.add(userId, seq, ops.size(), wb);
+    if (inlineMode)
+      inlineCompaction.apply(userId, seq, ops, wb);
+    seq -= ops.size();
+    for (Common.Operation op : ops) {
+      seq++;
+      if (op.getType() == Common.OpType.SNAPSHOT)
+        indexSnapshot(userId, op.getSnapshotId(), seq, wb);
+    }
+    wb.delete(userId.getBytes(Charset.defaultCharset()));
+    commit(userId, wb);
+  }
+
+  /**
+   * Called by the {@link LegacyLogMigrator} when there is no legacy log left, from now on the legacy values are not
+   * looked up anymore
+   */
+  void legacyLogMigrated() {
+    this.legacyLogMigrated = true;
+  }
+
+  private static List<Common.Operation> parseLegacy(byte[] legacy) {
+    try {
+      return ByteUtil.byteToOps(legacy);
+    } catch (InvalidProtocolBufferException e) {
+      throw new InternalServerException(e);
+    }
+  }
+
+  private static Common.Operation parse(byte[] record) {
+    try {
+      return OpUtil.parse(record, 0, record.length);
+    } catch (InvalidProtocolBufferException e) {
+      throw new InternalServerException(e);
+    }
+  }
+
+  /**
+   * @return an iterator over the legacy 'default' column family, which its keys are user ids
+   */
   RocksIterator keyIterator() {
     return rocksDB.newIterator();
   }
 
+  /**
+   * Visit the users waiting for compaction, used to restore the compaction queue on startup
+   */
+  void forEachBacklogged(CompactionBacklog.PendingVisitor visitor) {
+    backlog.forEach(visitor);
+  }
+
   /**
    * Close the underling rocks db instance and its writeOptions
    */
   @Override
   public void close() {
     compactionScheduler.close();
+    legacyLogMigrator.close();
+    writer.close();
     metaData.close();
+    stateCf.close();
+    logCf.close();
+    backlogCf.close();
     wo.close();
     rocksDB.close();
+    tuning.close();
   }
 }
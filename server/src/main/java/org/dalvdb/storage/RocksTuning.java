@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import org.dalvdb.DalvConfig;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Cache;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompressionType;
+import org.rocksdb.DBOptions;
+import org.rocksdb.LRUCache;
+import org.rocksdb.RateLimiter;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksObject;
+import org.rocksdb.StringAppendOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the RocksDB options from the 'rocksdb.*' configurations.
+ * <p>
+ * All the column families share one LRU block cache. Bloom filters are built for the column families which are
+ * read by point lookups (default, meta and state), the log is only read by range scans so its filters would be
+ * loaded for nothing. The native objects shared between the options, and the options themselves, are owned by this
+ * class and released on close, after the database is closed.
+ * <p>
+ * zstd is rejected, the rocksdbjni version in use crashes the JVM when it compresses with it.
+ */
+class RocksTuning implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(RocksTuning.class);
+
+  static {
+    RocksDB.loadLibrary();
+  }
+
+  private final long blockCacheSize = DalvConfig.getLong(DalvConfig.ROCKSDB_BLOCK_CACHE_SIZE);
+  private final long blockSize = DalvConfig.getLong(DalvConfig.ROCKSDB_BLOCK_SIZE);
+  private final int bloomBitsPerKey = DalvConfig.getInt(DalvConfig.ROCKSDB_BLOOM_BITS_PER_KEY);
+  private final List<CompressionType> compressionPerLevel =
+      parseCompressions(DalvConfig.getStr(DalvConfig.ROCKSDB_COMPRESSION_PER_LEVEL));
+  private final CompressionType bottommostCompression =
+      parseCompression(DalvConfig.getStr(DalvConfig.ROCKSDB_BOTTOMMOST_COMPRESSION));
+  private final int maxBackgroundJobs = DalvConfig.getInt(DalvConfig.ROCKSDB_MAX_BACKGROUND_JOBS);
+  private final long bytesPerSync = DalvConfig.getLong(DalvConfig.ROCKSDB_BYTES_PER_SYNC);
+  private final long rateLimit = DalvConfig.getLong(DalvConfig.ROCKSDB_RATE_LIMIT);
+  private final Cache blockCache = new LRUCache(blockCacheSize);
+  private final BloomFilter bloomFilter = bloomBitsPerKey > 0 ? new BloomFilter(bloomBitsPerKey, false) : null;
+  private final RateLimiter rateLimiter = rateLimit > 0 ? new RateLimiter(rateLimit) : null;
+  private final StringAppendOperator mergeOperator = new StringAppendOperator((char) (0));
+  //the options handed out, closed with the shared objects
+  private final List<RocksObject> handedOut = new ArrayList<>();
+
+  private static List<CompressionType> parseCompressions(String config) {
+    List<CompressionType> result = new ArrayList<>();
+    for (String name : config.split(","))
+      result.add(parseCompression(name));
+    return result;
+  }
+
+  /**
+   * @param name the name of the compression library, e.g. lz4 or snappy, or 'none'
+   */
+  private static CompressionType parseCompression(String name) {
+    name = name.trim();
+    if ("none".equalsIgnoreCase(name))
+      return CompressionType.NO_COMPRESSION;
+    if (name.equalsIgnoreCase(CompressionType.ZSTD_COMPRESSION.getLibraryName()))
+      throw new IllegalArgumentException("zstd compression is not supported, use lz4 or snappy instead");
+    for (CompressionType type : CompressionType.values())
+      if (name.equalsIgnoreCase(type.getLibraryName()))
+        return type;
+    throw new IllegalArgumentException("unknown compression: " + name);
+  }
+
+  DBOptions dbOptions() {
+    DBOptions options = new DBOptions()
+        .setCreateIfMissing(true)
+        .setCreateMissingColumnFamilies(true)
+        .setAtomicFlush(true) //NO_WAL writes span column families, they are persisted by flushing all of them
+        .setMaxBackgroundJobs(maxBackgroundJobs)
+        .setBytesPerSync(bytesPerSync);
+    if (rateLimiter != null)
+      options.setRateLimiter(rateLimiter);
+    handedOut.add(options);
+    return options;
+  }
+
+  /**
+   * @param pointLookups whether the column family is read by key, to build bloom filters for it
+   */
+  ColumnFamilyOptions columnFamilyOptions(boolean pointLookups) {
+    BlockBasedTableConfig tableConfig = new BlockBasedTableConfig()
+        .setBlockCache(blockCache)
+        .setBlockSize(blockSize)
+        .setCacheIndexAndFilterBlocks(true)
+        .setPinL0FilterAndIndexBlocksInCache(true);
+    if (pointLookups && bloomFilter != null)
+      tableConfig.setFilterPolicy(bloomFilter);
+    ColumnFamilyOptions cfOptions = new ColumnFamilyOptions()
+        .setMergeOperator(mergeOperator)
+        .setTableFormatConfig(tableConfig)
+        .setLevelCompactionDynamicLevelBytes(true)
+        .setCompressionPerLevel(compressionPerLevel)
+        .setBottommostCompressionType(bottommostCompression);
+    handedOut.add(cfOptions);
+    return cfOptions;
+  }
+
+  void log() {
+    logger.info("rocksdb options: blockCacheSize={}, blockSize={}, bloomBitsPerKey={}, compressionPerLevel={}, " +
+            "bottommostCompression={}, maxBackgroundJobs={}, bytesPerSync={}, rateLimit={}",
+        blockCacheSize, blockSize, bloomBitsPerKey, compressionPerLevel, bottommostCompression, maxBackgroundJobs,
+        bytesPerSync, rateLimit > 0 ? rateLimit : "unlimited");
+  }
+
+  @Override
+  public void close() {
+    for (RocksObject option : handedOut)
+      option.close();
+    handedOut.clear();
+    blockCache.close();
+    if (bloomFilter != null)
+      bloomFilter.close();
+    if (rateLimiter != null)
+      rateLimiter.close();
+    mergeOperator.close();
+  }
+}
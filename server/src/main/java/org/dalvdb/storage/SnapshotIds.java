@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import org.dalvdb.exception.InternalServerException;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The last snapshot id of each user, kept in memory and written through to the 'meta' column family.
+ * <p>
+ * The counter of a user is loaded from the meta column family on its first use and then served from memory, so
+ * allocating a snapshot id never reads the disk. The counters are updated only after the batch persisting the new
+ * snapshot is written, and allocating ids is serialized per user by synchronizing on the counter, because snapshots
+ * are taken under the user's read lock on the sync path.
+ * <p>
+ * Reading the last snapshot id of a user who has none does not keep a counter for it, so reading unknown users does not
+ * grow the map, and the counter of a user is dropped when the user is deleted.
+ * <p>
+ * The counters are weakly referenced, so the map only keeps the users whose counter is in use and the others are
+ * loaded again on their next use. A counter in use is never replaced by another one: allocating an id and the
+ * compaction both hold it, which keeps the synchronization on it and the compaction's identity check sound, and one
+ * which is no longer referenced has its last id written already.
+ */
+class SnapshotIds {
+  private final ConcurrentHashMap<String, CounterRef> counters = new ConcurrentHashMap<>();
+  private final ReferenceQueue<Counter> collected = new ReferenceQueue<>();
+  private final RocksDB rocksDB;
+  private final ColumnFamilyHandle metaCf;
+
+  SnapshotIds(RocksDB rocksDB, ColumnFamilyHandle metaCf) {
+    this.rocksDB = rocksDB;
+    this.metaCf = metaCf;
+  }
+
+  static final class Counter {
+    private final byte[] metaKey;
+    private volatile int lastId;
+
+    private Counter(byte[] metaKey, int lastId) {
+      this.metaKey = metaKey;
+      this.lastId = lastId;
+    }
+
+    int lastId() {
+      return lastId;
+    }
+
+    void committed(int snapshotId) {
+      this.lastId = snapshotId;
+    }
+  }
+
+  private static final class CounterRef extends WeakReference<Counter> {
+    private final String userId;
+
+    private CounterRef(String userId, Counter counter, ReferenceQueue<Counter> queue) {
+      super(counter, queue);
+      this.userId = userId;
+    }
+  }
+
+  /**
+   * @return the counter of the user, loaded from the meta column family if it is not in memory
+   */
+  Counter get(String userId) {
+    Counter counter = cached(userId);
+    if (counter != null) return counter;
+    Counter[] loaded = new Counter[1];
+    counters.compute(userId, (u, ref) -> {
+      loaded[0] = ref == null ? null : ref.get();
+      if (loaded[0] != null) return ref;
+      loaded[0] = load(u);
+      return new CounterRef(u, loaded[0], collected);
+    });
+    return loaded[0];
+  }
+
+  /**
+   * @return the last snapshot id of the user, its counter is only kept in memory if the user has a snapshot
+   */
+  int lastId(String userId) {
+    Counter counter = cached(userId);
+    if (counter != null) return counter.lastId;
+    if (load(userId).lastId == 0) return 0;
+    //loaded again under the map's lock, so a deletion committed meanwhile is not undone by a stale counter
+    return get(userId).lastId;
+  }
+
+  /**
+   * @return the number of counters kept in memory
+   */
+  int size() {
+    expunge();
+    return counters.size();
+  }
+
+  private Counter cached(String userId) {
+    expunge();
+    CounterRef ref = counters.get(userId);
+    return ref == null ? null : ref.get();
+  }
+
+  /**
+   * Drop the entries of the counters which are garbage collected
+   */
+  private void expunge() {
+    CounterRef ref;
+    while ((ref = (CounterRef) collected.poll()) != null)
+      counters.remove(ref.userId, ref);
+  }
+
+  /**
+   * Persist the new last snapshot id of the counter's user in the batch, the counter itself is updated by
+   * {@link Counter#committed(int)} once the batch is written
+   */
+  void put(Counter counter, int snapshotId, WriteBatch wb) throws RocksDBException {
+    wb.put(metaCf, counter.metaKey, ByteBuffer.allocate(4).putInt(snapshotId).array());
+  }
+
+  private Counter load(String userId) {
+    byte[] key = metaKey(userId);
+    try {
+      byte[] lastId = rocksDB.get(metaCf, key);
+      return new Counter(key, lastId == null ? 0 : ByteBuffer.wrap(lastId).getInt());
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    }
+  }
+
+  /**
+   * Delete the last snapshot id of the user in the batch, the counter is dropped from memory by
+   * {@link #remove(String)} once the batch is written
+   */
+  void delete(String userId, WriteBatch wb) throws RocksDBException {
+    wb.delete(metaCf, metaKey(userId));
+  }
+
+  void remove(String userId) {
+    counters.remove(userId);
+  }
+
+  private static byte[] metaKey(String userId) {
+    return (userId + ".lastSnapshotId").getBytes(Charset.defaultCharset());
+  }
+}
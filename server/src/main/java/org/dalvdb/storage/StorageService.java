@@ -21,6 +21,7 @@ import com.google.protobuf.ByteString;
 import dalv.common.Common;
 
 import java.io.Closeable;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -39,7 +40,21 @@ public interface StorageService extends Closeable {
    * @param lastSnapshotId last snapshotId seen by user, for conflict detection
    * @return true if operations persisted successfully, false if any conflict detected
    */
-  boolean handleOperations(String userId, List<Common.Operation> opsList, int lastSnapshotId);
+  default boolean handleOperations(String userId, List<Common.Operation> opsList, int lastSnapshotId) {
+    return handleOperations(userId, opsList, lastSnapshotId, Common.Durability.DEFAULT);
+  }
+
+  /**
+   * handle all operations for a user in an atomic way, persisting them with the provided durability
+   *
+   * @param userId         the user identification
+   * @param opsList        list of operation to handle
+   * @param lastSnapshotId last snapshotId seen by user, for conflict detection
+   * @param durability     how the operations must be persisted, DEFAULT to decide based on the configuration
+   * @return true if operations persisted successfully, false if any conflict detected
+   */
+  boolean handleOperations(String userId, List<Common.Operation> opsList, int lastSnapshotId,
+                           Common.Durability durability);
 
   /**
    * add a single operation for a specific user
@@ -47,13 +62,39 @@ public interface StorageService extends Closeable {
    * @param userId    the user identification
    * @param operation the operation to add
    */
-  void addOperation(String userId, Common.Operation operation);
+  default void addOperation(String userId, Common.Operation operation) {
+    addOperation(userId, operation, Common.Durability.DEFAULT);
+  }
+
+  /**
+   * add a single operation for a specific user, persisting it with the provided durability
+   *
+   * @param userId     the user identification
+   * @param operation  the operation to add
+   * @param durability how the operation must be persisted, DEFAULT to decide based on the configuration
+   */
+  default void addOperation(String userId, Common.Operation operation, Common.Durability durability) {
+    addOperations(userId, Collections.singletonList(operation), durability);
+  }
+
+  /**
+   * add several operations for a specific user in an atomic way without conflict detection, persisting them with the
+   * provided durability
+   *
+   * @param userId     the user identification
+   * @param operations the operations to add, in order
+   * @param durability how the operations must be persisted, DEFAULT to decide based on the configuration
+   */
+  void addOperations(String userId, List<Common.Operation> operations, Common.Durability durability);
 
   /**
    * Get the list of operations for a user after the lastSnapshotId
    *
    * if the lastSnapshotId does not exist and greater than 0
    * then add a remove all operation in the beginning of the result
+   * <p>
+   * it does not need the user's lock, the operations are read from a consistent view of the storage even if another
+   * thread is updating the user
    *
    * @param userId         the user identification
    * @param lastSnapshotId return operations after this snapshot
@@ -62,7 +103,7 @@ public interface StorageService extends Closeable {
   List<Common.Operation> get(String userId, int lastSnapshotId);
 
   /**
-   * get the value of a specific key for a user
+   * get the value of a specific key for a user, it does not need the user's lock
    *
    * @param userId the user identification
    * @param key    the key to query
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded LRU cache of the decoded state of the recently used users, so the active users are served without reading
+ * and parsing their records on every sync or get.
+ * <p>
+ * An entry holds the operations after the user's last snapshot along with the id of that snapshot, which is what
+ * a sync of an up-to-date client returns, and the values of the keys read so far. The users are spread over a fixed
+ * number of segments, each with its own lock, LRU order and share of the capacity, so the users of different segments
+ * do not wait for each other. An entry is updated in place under the lock of its segment and its estimated heap
+ * footprint is kept up to date incrementally. The tail returned to a reader is an immutable list, a write replaces it
+ * with an extended copy. A tail longer than the configured maximum is dropped instead, so a write never copies more
+ * than that many operations, and the syncs of such a user read its log from the storage until its next snapshot.
+ * <p>
+ * Readers do not hold the user's lock, so an entry read from the storage is only cached if no writer has updated the
+ * user since the reader started, which is checked with a stamp taken by {@link #stamp(String)} before reading, and no
+ * write of the user is in progress. A writer announces itself by {@link #writing(String)} before committing, as the
+ * reader may see its commit before {@link #appended(String, List)} is called, and by {@link #written(String)} once the
+ * cache is updated. Stamps are kept for a fixed number of stripes of users, so a write may also reject the loads of a
+ * few other users.
+ */
+class UserCache {
+  //rough heap overhead of an object with its map or list slot
+  private static final int OVERHEAD = 64;
+  private static final int SEGMENTS = 16;
+  private static final int STAMP_STRIPES = 64; //per segment
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final int maxTail;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param capacity the maximum estimated size of the cached entries in bytes, 0 disables the cache
+   * @param maxTail  the maximum number of operations of a cached tail
+   */
+  UserCache(long capacity, int maxTail) {
+    this.maxTail = maxTail;
+    for (int i = 0; i < SEGMENTS; i++)
+      segments[i] = new Segment(capacity / SEGMENTS);
+  }
+
+  private static final class Entry {
+    /**
+     * the id of the last snapshot of the user, or -1 if the tail is not loaded
+     */
+    private int lastSnapshotId = -1;
+    /**
+     * the operations after the last snapshot, or null if not loaded
+     */
+    private List<Common.Operation> tail;
+    /**
+     * the value of the keys in the {@link StorageService#getValue(String, String)} format
+     */
+    private final Map<String, ByteString> values = new HashMap<>();
+    private long weight = OVERHEAD;
+  }
+
+  private final class Segment {
+    private final long capacity;
+    private final long[] stamps = new long[STAMP_STRIPES];
+    //the writes in progress in each stripe
+    private final int[] writers = new int[STAMP_STRIPES];
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+
+    private Segment(long capacity) {
+      this.capacity = capacity;
+    }
+
+    /**
+     * @return the entry of the user, created if there is none
+     */
+    private Entry entry(String userId) {
+      Entry entry = entries.get(userId);
+      if (entry == null) {
+        entry = new Entry();
+        entries.put(userId, entry);
+        weight += entry.weight;
+      }
+      return entry;
+    }
+
+    private void setTail(Entry entry, int lastSnapshotId, List<Common.Operation> tail) {
+      long delta = -tailWeight(entry.tail);
+      if (tail != null && tail.size() > maxTail) {
+        entry.lastSnapshotId = -1;
+        entry.tail = null;
+      } else {
+        entry.lastSnapshotId = lastSnapshotId;
+        entry.tail = tail;
+        delta += tailWeight(tail);
+      }
+      entry.weight += delta;
+      weight += delta;
+    }
+
+    private void putValue(Entry entry, String key, ByteString value) {
+      ByteString old = entry.values.put(key, value);
+      long delta = valueWeight(key, value) - (old == null ? 0 : valueWeight(key, old));
+      entry.weight += delta;
+      weight += delta;
+    }
+
+    private void removeValue(Entry entry, String key) {
+      ByteString old = entry.values.remove(key);
+      if (old == null) return;
+      long delta = valueWeight(key, old);
+      entry.weight -= delta;
+      weight -= delta;
+    }
+
+    private void evict() {
+      Iterator<Entry> eldest = entries.values().iterator();
+      while (weight > capacity && eldest.hasNext()) {
+        weight -= eldest.next().weight;
+        eldest.remove();
+        evictions.increment();
+      }
+    }
+
+    /**
+     * @return whether the user may have been updated since the stamp was taken, or is being updated
+     */
+    private boolean changed(int stripe, long stamp) {
+      return stamps[stripe] != stamp || writers[stripe] != 0;
+    }
+  }
+
+  private static long tailWeight(List<Common.Operation> tail) {
+    if (tail == null) return 0;
+    long w = 0;
+    for (Common.Operation op : tail)
+      w += OVERHEAD + op.getSerializedSize();
+    return w;
+  }
+
+  private static long valueWeight(String key, ByteString value) {
+    return OVERHEAD + 2L * key.length() + value.size();
+  }
+
+  private static int hash(String userId) {
+    int h = userId.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private Segment segment(String userId) {
+    return segments[hash(userId) & (SEGMENTS - 1)];
+  }
+
+  private static int stripe(String userId) {
+    return (hash(userId) >>> 4) & (STAMP_STRIPES - 1);
+  }
+
+  /**
+   * @return the operations after the provided snapshot if the cached tail starts from it, otherwise null
+   */
+  List<Common.Operation> getTail(String userId, int snapshotId) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      Entry entry = segment.entries.get(userId);
+      if (entry == null || entry.tail == null || entry.lastSnapshotId != snapshotId) {
+        misses.increment();
+        return null;
+      }
+      hits.increment();
+      return entry.tail;
+    }
+  }
+
+  /**
+   * @return the cached value of the key or null if it is not cached
+   */
+  ByteString getValue(String userId, String key) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      Entry entry = segment.entries.get(userId);
+      ByteString value = entry == null ? null : entry.values.get(key);
+      if (value == null)
+        misses.increment();
+      else
+        hits.increment();
+      return value;
+    }
+  }
+
+  /**
+   * @return the stamp to pass to the load methods, taken before reading the user from the storage
+   */
+  long stamp(String userId) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      return segment.stamps[stripe(userId)];
+    }
+  }
+
+  /**
+   * Cache the tail of a user read from the storage, ignored if the user has been updated since the stamp was taken
+   * or its tail has been cached since
+   */
+  void loadTail(String userId, long stamp, int lastSnapshotId, List<Common.Operation> tail) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      if (segment.capacity <= 0 || segment.changed(stripe(userId), stamp) || tail.size() > maxTail) return;
+      Entry entry = segment.entry(userId);
+      if (entry.tail != null) return;
+      segment.setTail(entry, lastSnapshotId, Collections.unmodifiableList(new ArrayList<>(tail)));
+      segment.evict();
+    }
+  }
+
+  /**
+   * Cache the value of a key read from the storage, ignored if the user has been updated since the stamp was taken
+   */
+  void loadValue(String userId, long stamp, String key, ByteString value) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      if (segment.capacity <= 0 || segment.changed(stripe(userId), stamp)) return;
+      segment.putValue(segment.entry(userId), key, value);
+      segment.evict();
+    }
+  }
+
+  /**
+   * Called before committing a write of the user, no load of the user is cached until {@link #written(String)}
+   */
+  void writing(String userId) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      int stripe = stripe(userId);
+      segment.stamps[stripe]++;
+      segment.writers[stripe]++;
+    }
+  }
+
+  /**
+   * Called after the write announced by {@link #writing(String)} is committed and reflected in the cache, or failed
+   */
+  void written(String userId) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      int stripe = stripe(userId);
+      segment.stamps[stripe]++;
+      segment.writers[stripe]--;
+    }
+  }
+
+  /**
+   * Reflect the operations appended to the user's log, the tail is extended and the values of the modified keys are
+   * dropped
+   */
+  void appended(String userId, List<Common.Operation> ops) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      segment.stamps[stripe(userId)]++;
+      Entry entry = segment.entries.get(userId);
+      if (entry == null) return;
+      if (entry.tail != null) {
+        if (entry.tail.size() + ops.size() > maxTail) {
+          segment.setTail(entry, -1, null);
+        } else {
+          List<Common.Operation> tail = new ArrayList<>(entry.tail.size() + ops.size());
+          tail.addAll(entry.tail);
+          tail.addAll(ops);
+          long delta = tailWeight(ops);
+          entry.tail = Collections.unmodifiableList(tail);
+          entry.weight += delta;
+          segment.weight += delta;
+        }
+      }
+      for (Common.Operation op : ops)
+        segment.removeValue(entry, op.getKey());
+      segment.evict();
+    }
+  }
+
+  /**
+   * Reflect a new snapshot appended to the user's log, there is no operation after it yet
+   */
+  void snapshotted(String userId, int snapshotId) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      segment.stamps[stripe(userId)]++;
+      if (segment.capacity <= 0) return;
+      segment.setTail(segment.entry(userId), snapshotId, Collections.emptyList());
+      segment.evict();
+    }
+  }
+
+  /**
+   * Drop the tail of the user, used when the log is rewritten, the values are still valid
+   */
+  void invalidateTail(String userId) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      segment.stamps[stripe(userId)]++;
+      Entry entry = segment.entries.get(userId);
+      if (entry == null) return;
+      segment.setTail(entry, -1, null);
+    }
+  }
+
+  /**
+   * Drop everything cached for the user
+   */
+  void invalidate(String userId) {
+    Segment segment = segment(userId);
+    synchronized (segment) {
+      segment.stamps[stripe(userId)]++;
+      Entry removed = segment.entries.remove(userId);
+      if (removed != null)
+        segment.weight -= removed.weight;
+    }
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  long evictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the estimated size of the cached entries in bytes
+   */
+  long weight() {
+    long weight = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        weight += segment.weight;
+      }
+    }
+    return weight;
+  }
+}
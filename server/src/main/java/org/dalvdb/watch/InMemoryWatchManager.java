@@ -18,148 +18,561 @@
 package org.dalvdb.watch;
 
 import dalv.common.Common;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.dalvdb.DalvConfig;
 import org.dalvdb.proto.BackendProto;
 import org.dalvdb.proto.ClientProto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
+/**
+ * Keeps the watches in {@link ConcurrentHashMap}s, which are locked per bin of the key's hash, and the watchers of a
+ * key in a copy-on-write list. Watching and cancelling only lock the bin of their key, and notifying reads a snapshot of
+ * the watchers without any lock, so none of them waits for the others.
+ * <p>
+ * The operations of a notification are grouped by key and each key is notified by one task, which sends a single
+ * response to the batched watchers and one response per operation to the others.
+ * <p>
+ * The responses of a watcher go through a queue of at most {@link DalvConfig#WATCH_QUEUE_SIZE} responses, which is
+ * drained only while the gRPC stream is ready, so a slow subscriber can not make gRPC buffer its responses without a
+ * bound. When the queue is full the watch's {@link Common.Overflow} policy applies, which is
+ * {@link DalvConfig#WATCH_OVERFLOW} unless the watch asks for another one. None of the policies makes the notifying
+ * task wait, as it runs on the pool shared by all the watchers. A BLOCK subscriber's queue grows past its size
+ * instead, and the subscriber is disconnected if the queue doubles or is not drained below its size within
+ * {@link DalvConfig#WATCH_BLOCK_TIMEOUT}. A COALESCE subscriber only loses the responses superseded by a newer one,
+ * it is disconnected when nothing can be dropped, like a DISCONNECT one.
+ * <p>
+ * The notifications of a key are run one after another, in the order {@link #notifyChange(String, List)} is called,
+ * which is the order the changes of a user are committed in.
+ * <p>
+ * A latest-only watcher receives the operations of a sync from the last PUT or DEL on, and while its stream is not
+ * ready the queued responses of a user are replaced by a newer one which has a PUT or DEL, so a user who only puts
+ * has at most one response in its queue and the responses it is sent are bounded by how fast it reads rather than by
+ * the rate of the writes. The list operations are never replaced, as each of them changes the state.
+ */
 public class InMemoryWatchManager implements WatchManager, Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(InMemoryWatchManager.class);
+  /**
+   * Trailer of a watch disconnected by its overflow policy, the number of responses sent on the stream before
+   */
+  public static final Metadata.Key<String> POSITION_TRAILER =
+      Metadata.Key.of("dalv-watch-position", Metadata.ASCII_STRING_MARSHALLER);
 
-  private final ReadWriteLock lock = new ReentrantReadWriteLock();
-  private final Map<String, List<StreamObserver<BackendProto.WatchResponse>>> backendWatches = new HashMap<>();
-  private final Map<String, Map<String, List<StreamObserver<ClientProto.WatchResponse>>>> clientWatches = new HashMap<>();
+  private final Map<String, List<Subscriber<BackendProto.WatchResponse>>> backendWatches = new ConcurrentHashMap<>();
+  private final Map<String, Map<String, List<Subscriber<ClientProto.WatchResponse>>>> clientWatches =
+      new ConcurrentHashMap<>();
+  private final Map<String, Strand> strands = new ConcurrentHashMap<>();
   private final ExecutorService watcherExecutor = Executors.newFixedThreadPool(
       DalvConfig.getInt(DalvConfig.WATCHER_THREAD_NUM));
+  private final int queueSize = DalvConfig.getInt(DalvConfig.WATCH_QUEUE_SIZE);
+  private final Common.Overflow defaultOverflow = Common.Overflow.valueOf(DalvConfig.getStr(DalvConfig.WATCH_OVERFLOW));
+  private final long blockTimeout = TimeUnit.MILLISECONDS.toNanos(
+      DalvConfig.getLong(DalvConfig.WATCH_BLOCK_TIMEOUT));
+  private final LongAdder queued = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder replaced = new LongAdder();
+  private final LongAdder disconnected = new LongAdder();
 
-  @Override
-  public void addBackendWatch(String key, StreamObserver<BackendProto.WatchResponse> responseObserver) {
-    lock.writeLock().lock();
-    try {
-      backendWatches.putIfAbsent(key, new LinkedList<>());
-      backendWatches.get(key).add(responseObserver);
-    } finally {
-      lock.writeLock().unlock();
+  /**
+   * A watcher and the responses which are not sent to it yet
+   */
+  private final class Subscriber<T> {
+    private final StreamObserver<T> observer;
+    //null if the observer has no flow control, it is then always ready
+    private final ServerCallStreamObserver<T> flowControlled;
+    private final boolean batched;
+    private final boolean latestOnly;
+    private final Common.Overflow overflow;
+    //guarded by this
+    private final ArrayDeque<Queued<T>> queue = new ArrayDeque<>();
+    //the number of queued responses of each user and the last of them, only for the latest-only subscribers
+    private final Map<String, Integer> pendingByUser = new HashMap<>();
+    private final Map<String, Queued<T>> lastByUser = new HashMap<>();
+    private long sent;
+    private boolean closed;
+    //whether the queue of a BLOCK subscriber is past its size, and until when it may stay so
+    private boolean blocked;
+    private long blockDeadline;
+    //removes the subscriber from the watches when the stream ends on its own
+    private volatile Runnable unregister = () -> {
+    };
+
+    private Subscriber(StreamObserver<T> observer, boolean batched, boolean latestOnly, Common.Overflow overflow) {
+      this.observer = observer;
+      this.batched = batched;
+      this.latestOnly = latestOnly;
+      this.overflow = overflow == Common.Overflow.OVERFLOW_DEFAULT || overflow == Common.Overflow.UNRECOGNIZED
+          ? defaultOverflow : overflow;
+      if (observer instanceof ServerCallStreamObserver) {
+        flowControlled = (ServerCallStreamObserver<T>) observer;
+        flowControlled.setOnReadyHandler(this::drain);
+        flowControlled.setOnCancelHandler(this::cancelled);
+      } else {
+        flowControlled = null;
+      }
+    }
+
+    /**
+     * Queue the responses of a user and send the ones the stream is ready for
+     *
+     * @param superseding whether each response leaves the key in the same state whatever the responses before it
+     */
+    private void send(String userId, List<T> responses, boolean[] superseding) {
+      boolean overflowed = false;
+      synchronized (this) {
+        for (int i = 0; i < responses.size() && !closed; i++) {
+          if (latestOnly && superseding[i] && replace(userId, responses.get(i)))
+            continue;
+          if (queue.size() >= queueSize) {
+            flush();
+            if (queue.size() >= queueSize && !makeRoom(userId, superseding[i])) {
+              overflowed = true;
+              break;
+            }
+          }
+          Queued<T> next = new Queued<>(userId, responses.get(i));
+          queue.add(next);
+          queued.increment();
+          if (latestOnly) {
+            pendingByUser.merge(userId, 1, Integer::sum);
+            lastByUser.put(userId, next);
+          }
+        }
+        if (!overflowed)
+          flush();
+      }
+      if (overflowed)
+        disconnect();
+    }
+
+    /**
+     * Replace the queued responses of the user by a response which supersedes them, must hold the monitor
+     *
+     * @return true if the response took the place of the only queued response of the user, otherwise it must be
+     * queued
+     */
+    private boolean replace(String userId, T response) {
+      Integer pending = pendingByUser.get(userId);
+      if (pending == null) return false;
+      replaced.add(pending);
+      if (pending == 1) {
+        lastByUser.get(userId).response = response;
+        return true;
+      }
+      removeQueued(userId);
+      return false;
+    }
+
+    /**
+     * Remove the queued responses of the user, must hold the monitor
+     *
+     * @return the number of removed responses
+     */
+    private int removeQueued(String userId) {
+      int removed = 0;
+      Iterator<Queued<T>> it = queue.iterator();
+      while (it.hasNext()) {
+        if (it.next().userId.equals(userId)) {
+          it.remove();
+          removed++;
+        }
+      }
+      queued.add(-removed);
+      pendingByUser.remove(userId);
+      lastByUser.remove(userId);
+      return removed;
+    }
+
+    /**
+     * Apply the overflow policy to the full queue
+     *
+     * @return false if the subscriber must be disconnected
+     */
+    private boolean makeRoom(String userId, boolean superseding) {
+      switch (overflow) {
+        case BLOCK:
+          //the notifying thread never waits, the queue grows past its size until the stream drains it
+          if (!blocked) {
+            blocked = true;
+            blockDeadline = System.nanoTime() + blockTimeout;
+          }
+          return queue.size() < 2 * queueSize && System.nanoTime() - blockDeadline < 0;
+        case COALESCE:
+          if (superseding) {
+            dropped.add(removeQueued(userId));
+            if (queue.size() < queueSize) return true;
+          }
+          //a response which is not superseded changes the state, it is never dropped
+          return false;
+        case DROP_OLDEST:
+          poll();
+          dropped.increment();
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    /**
+     * Send the queued responses while the stream is ready, must hold the monitor
+     */
+    private void flush() {
+      while (!closed && !queue.isEmpty() && (flowControlled == null || flowControlled.isReady())) {
+        Queued<T> next = poll();
+        try {
+          observer.onNext(next.response);
+          sent++;
+        } catch (RuntimeException e) {
+          //the call is cancelled meanwhile
+          logger.debug("sending a watch response failed", e);
+          discard();
+          unregister.run();
+        }
+      }
+      if (queue.size() < queueSize)
+        blocked = false;
+    }
+
+    /**
+     * Remove the oldest queued response, must hold the monitor
+     */
+    private Queued<T> poll() {
+      Queued<T> oldest = queue.poll();
+      queued.decrement();
+      if (latestOnly) {
+        pendingByUser.computeIfPresent(oldest.userId, (u, n) -> n == 1 ? null : n - 1);
+        if (lastByUser.get(oldest.userId) == oldest)
+          lastByUser.remove(oldest.userId);
+      }
+      return oldest;
+    }
+
+    private synchronized void drain() {
+      flush();
+    }
+
+    private void cancelled() {
+      synchronized (this) {
+        discard();
+      }
+      unregister.run();
+    }
+
+    /**
+     * Close the subscriber and drop its queue, must hold the monitor
+     */
+    private void discard() {
+      closed = true;
+      queued.add(-queue.size());
+      queue.clear();
+      pendingByUser.clear();
+      lastByUser.clear();
+    }
+
+    private void disconnect() {
+      long position;
+      synchronized (this) {
+        if (closed) return;
+        dropped.add(queue.size());
+        discard();
+        position = sent;
+      }
+      disconnected.increment();
+      unregister.run();
+      Metadata trailers = new Metadata();
+      trailers.put(POSITION_TRAILER, Long.toString(position));
+      observer.onError(Status.RESOURCE_EXHAUSTED
+          .withDescription("the watch fell behind after " + position + " responses")
+          .asRuntimeException(trailers));
+    }
+
+    /**
+     * @return the index of the form of the responses the subscriber receives
+     */
+    private int form() {
+      return (batched ? 1 : 0) + (latestOnly ? 2 : 0);
+    }
+
+    private void complete() {
+      synchronized (this) {
+        if (closed) return;
+        discard();
+      }
+      observer.onCompleted();
     }
   }
 
-  @Override
-  public void addClientWatch(String userId, String key, StreamObserver<ClientProto.WatchResponse> responseObserver) {
-    lock.writeLock().lock();
-    try {
-      clientWatches.putIfAbsent(userId, new HashMap<>());
-      clientWatches.get(userId).putIfAbsent(key, new LinkedList<>());
-      clientWatches.get(userId).get(key).add(responseObserver);
-    } finally {
-      lock.writeLock().unlock();
+  private static final class Queued<T> {
+    private final String userId;
+    private T response;
+
+    private Queued(String userId, T response) {
+      this.userId = userId;
+      this.response = response;
+    }
+  }
+
+  /**
+   * The responses of a notification in the form some of the subscribers receive
+   */
+  private static final class Responses<T> {
+    private final List<T> list = new ArrayList<>();
+    private final boolean[] superseding;
+
+    private Responses(List<Common.Operation> ops, boolean batched, Function<List<Common.Operation>, T> batch,
+                      Function<Common.Operation, T> single) {
+      if (batched) {
+        list.add(batch.apply(ops));
+        superseding = new boolean[]{ops.stream().anyMatch(InMemoryWatchManager::supersedes)};
+      } else {
+        superseding = new boolean[ops.size()];
+        for (int i = 0; i < ops.size(); i++) {
+          list.add(single.apply(ops.get(i)));
+          superseding[i] = supersedes(ops.get(i));
+        }
+      }
     }
   }
 
+  /**
+   * The notification tasks of a key, which are run one after another in the order they were submitted, so every
+   * subscriber of the key receives the changes of a user in the order they were committed
+   */
+  private final class Strand implements Runnable {
+    private final String key;
+    //guarded by the map's lock on the key, see strand and run
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+    private Strand(String key) {
+      this.key = key;
+    }
+
+    @Override
+    public void run() {
+      Runnable[] next = {null};
+      strands.compute(key, (k, strand) -> {
+        next[0] = tasks.poll();
+        return next[0] == null ? null : strand;
+      });
+      if (next[0] == null) return;
+      try {
+        next[0].run();
+      } catch (RuntimeException e) {
+        logger.error("notifying the watchers of {} failed", key, e);
+      }
+      watcherExecutor.execute(this);
+    }
+  }
+
+  private void strand(String key, Runnable task) {
+    Strand[] created = {null};
+    strands.compute(key, (k, strand) -> {
+      if (strand == null)
+        strand = created[0] = new Strand(k);
+      strand.tasks.add(task);
+      return strand;
+    });
+    if (created[0] != null)
+      watcherExecutor.execute(created[0]);
+  }
+
+  /**
+   * @return whether the state of the key after the operation does not depend on the operations before it
+   */
+  private static boolean supersedes(Common.Operation op) {
+    return op.getType() == Common.OpType.PUT || op.getType() == Common.OpType.DEL;
+  }
+
+  @Override
+  public void addBackendWatch(String key, boolean batched, boolean latestOnly, Common.Overflow overflow,
+                              StreamObserver<BackendProto.WatchResponse> responseObserver) {
+    Subscriber<BackendProto.WatchResponse> subscriber =
+        new Subscriber<>(responseObserver, batched, latestOnly, overflow);
+    subscriber.unregister = () -> backendWatches.computeIfPresent(key, (k, subscribers) -> {
+      subscribers.remove(subscriber);
+      return subscribers.isEmpty() ? null : subscribers;
+    });
+    //added inside compute, so a concurrent cancel either completes the watcher or does not see the list at all
+    backendWatches.compute(key, (k, subscribers) -> {
+      if (subscribers == null)
+        subscribers = new CopyOnWriteArrayList<>();
+      subscribers.add(subscriber);
+      return subscribers;
+    });
+  }
+
+  @Override
+  public void addClientWatch(String userId, String key, boolean batched, boolean latestOnly,
+                             Common.Overflow overflow, StreamObserver<ClientProto.WatchResponse> responseObserver) {
+    Subscriber<ClientProto.WatchResponse> subscriber =
+        new Subscriber<>(responseObserver, batched, latestOnly, overflow);
+    subscriber.unregister = () -> clientWatches.computeIfPresent(userId, (u, keys) -> {
+      keys.computeIfPresent(key, (k, subscribers) -> {
+        subscribers.remove(subscriber);
+        return subscribers.isEmpty() ? null : subscribers;
+      });
+      return keys.isEmpty() ? null : keys;
+    });
+    clientWatches.compute(userId, (u, keys) -> {
+      if (keys == null)
+        keys = new ConcurrentHashMap<>();
+      keys.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(subscriber);
+      return keys;
+    });
+  }
+
   @Override
   public void notifyChange(String userId, List<Common.Operation> operations) {
-    operations.forEach(operation -> notifyChange(userId, operation));
+    Map<String, List<Common.Operation>> byKey = new LinkedHashMap<>();
+    for (Common.Operation operation : operations)
+      byKey.computeIfAbsent(operation.getKey(), k -> new ArrayList<>()).add(operation);
+    Map<String, List<Subscriber<ClientProto.WatchResponse>>> keys = clientWatches.get(userId);
+    byKey.forEach((key, ops) -> {
+      List<Subscriber<BackendProto.WatchResponse>> backendSubscribers = backendWatches.get(key);
+      List<Subscriber<ClientProto.WatchResponse>> clientSubscribers = keys == null ? null : keys.get(key);
+      if (backendSubscribers == null && clientSubscribers == null) return;
+      strand(key, () -> {
+        if (backendSubscribers != null)
+          backendNotifyChange(backendSubscribers, userId, ops);
+        if (clientSubscribers != null)
+          clientNotifyChange(clientSubscribers, userId, ops);
+      });
+    });
   }
 
   @Override
   public void notifyChange(String userId, Common.Operation operation) {
-    lock.readLock().lock();
-    try {
-      watcherExecutor.submit(() -> backendNotifyChange(userId, operation));
-      watcherExecutor.submit(() -> clientNotifyChange(userId, operation));
-    } finally {
-      lock.readLock().unlock();
-    }
+    notifyChange(userId, Collections.singletonList(operation));
   }
 
   @Override
   public void cancelAllClientWatch(String userId) {
-    lock.writeLock().lock();
-    try {
-      Map<String, List<StreamObserver<ClientProto.WatchResponse>>> map = clientWatches.remove(userId);
-      if (map == null) return;
-      map.values().forEach(soList -> soList.forEach(StreamObserver::onCompleted));
-    } finally {
-      lock.writeLock().unlock();
-    }
+    Map<String, List<Subscriber<ClientProto.WatchResponse>>> map = clientWatches.remove(userId);
+    if (map == null) return;
+    map.values().forEach(InMemoryWatchManager::complete);
   }
 
   @Override
   public void cancelClientWatch(String userId, String key) {
-    lock.writeLock().lock();
-    try {
-      Map<String, List<StreamObserver<ClientProto.WatchResponse>>> map = clientWatches.remove(userId);
-      if (map == null) return;
-      List<StreamObserver<ClientProto.WatchResponse>> soList = map.get(key);
-      if (soList == null) return;
-      soList.forEach(StreamObserver::onCompleted);
-    } finally {
-      lock.writeLock().unlock();
-    }
+    List<List<Subscriber<ClientProto.WatchResponse>>> removed = new ArrayList<>(1);
+    clientWatches.computeIfPresent(userId, (u, keys) -> {
+      List<Subscriber<ClientProto.WatchResponse>> soList = keys.remove(key);
+      if (soList != null)
+        removed.add(soList);
+      return keys.isEmpty() ? null : keys;
+    });
+    removed.forEach(InMemoryWatchManager::complete);
   }
 
   @Override
   public void cancelAllBackendWatch() {
-    lock.writeLock().lock();
-    try {
-      backendWatches.values().forEach(soList -> soList.forEach(StreamObserver::onCompleted));
-      backendWatches.clear();
-    } finally {
-      lock.writeLock().unlock();
-    }
+    backendWatches.keySet().forEach(this::cancelBackendWatch);
   }
 
   @Override
   public void cancelBackendWatch(String key) {
-    lock.writeLock().lock();
-    try {
-      List<StreamObserver<BackendProto.WatchResponse>> list = backendWatches.remove(key);
-      if (list == null) return;
-      list.forEach(StreamObserver::onCompleted);
-    } finally {
-      lock.writeLock().unlock();
-    }
+    List<Subscriber<BackendProto.WatchResponse>> list = backendWatches.remove(key);
+    if (list == null) return;
+    complete(list);
+  }
+
+  /**
+   * Complete the removed watchers, their queued responses are dropped
+   */
+  private static <T> void complete(List<Subscriber<T>> subscribers) {
+    List<Subscriber<T>> completed = new ArrayList<>(subscribers);
+    subscribers.clear();
+    completed.forEach(Subscriber::complete);
   }
 
-  private void clientNotifyChange(String userId, Common.Operation operation) {
-    List<StreamObserver<ClientProto.WatchResponse>> streamObservers = clientWatches.get(userId)
-        .getOrDefault(operation.getKey(), null);
-    if (streamObservers == null) return;
-    for (StreamObserver<ClientProto.WatchResponse> o : streamObservers) {
-      o.onNext(ClientProto.WatchResponse.newBuilder()
-          .setOperation(operation)
-          .build());
+  private void clientNotifyChange(List<Subscriber<ClientProto.WatchResponse>> subscribers, String userId,
+                                  List<Common.Operation> operations) {
+    //each form of the responses is built once, for the first subscriber which needs it
+    List<Responses<ClientProto.WatchResponse>> forms = new ArrayList<>(Collections.nCopies(4, null));
+    for (Subscriber<ClientProto.WatchResponse> subscriber : subscribers) {
+      int form = subscriber.form();
+      if (forms.get(form) == null)
+        forms.set(form, new Responses<>(subscriber.latestOnly ? latest(operations) : operations, subscriber.batched,
+            ops -> ClientProto.WatchResponse.newBuilder().addAllOperations(ops).build(),
+            op -> ClientProto.WatchResponse.newBuilder().setOperation(op).build()));
+      subscriber.send(userId, forms.get(form).list, forms.get(form).superseding);
     }
   }
 
-  private void backendNotifyChange(String userId, Common.Operation operation) {
-    List<StreamObserver<BackendProto.WatchResponse>> streamObservers = backendWatches.get(operation.getKey());
-    if (streamObservers == null) return;
-    for (StreamObserver<BackendProto.WatchResponse> o : streamObservers) {
-      o.onNext(BackendProto.WatchResponse.newBuilder()
-          .setOperation(operation)
-          .setUserId(userId)
-          .build());
+  private void backendNotifyChange(List<Subscriber<BackendProto.WatchResponse>> subscribers, String userId,
+                                   List<Common.Operation> operations) {
+    List<Responses<BackendProto.WatchResponse>> forms = new ArrayList<>(Collections.nCopies(4, null));
+    for (Subscriber<BackendProto.WatchResponse> subscriber : subscribers) {
+      int form = subscriber.form();
+      if (forms.get(form) == null)
+        forms.set(form, new Responses<>(subscriber.latestOnly ? latest(operations) : operations, subscriber.batched,
+            ops -> BackendProto.WatchResponse.newBuilder().setUserId(userId).addAllOperations(ops).build(),
+            op -> BackendProto.WatchResponse.newBuilder().setOperation(op).setUserId(userId).build()));
+      subscriber.send(userId, forms.get(form).list, forms.get(form).superseding);
     }
   }
 
+  /**
+   * @return the operations from the last one which supersedes the key, or all of them if there is none
+   */
+  private static List<Common.Operation> latest(List<Common.Operation> operations) {
+    for (int i = operations.size() - 1; i >= 0; i--)
+      if (supersedes(operations.get(i)))
+        return operations.subList(i, operations.size());
+    return operations;
+  }
+
+  /**
+   * @return the number of responses waiting for the watchers to be ready
+   */
+  long queuedResponses() {
+    return queued.sum();
+  }
+
+  /**
+   * @return the number of responses dropped by the overflow policies since the start
+   */
+  long droppedResponses() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return the number of queued responses of the latest-only watchers replaced by a newer one since the start
+   */
+  long replacedResponses() {
+    return replaced.sum();
+  }
+
+  /**
+   * @return the number of watchers disconnected by the overflow policies since the start
+   */
+  long disconnectedWatches() {
+    return disconnected.sum();
+  }
+
   @Override
   public void close() {
-    lock.writeLock().lock();
-    try {
-      backendWatches.values().forEach(streamObservers -> streamObservers.forEach(StreamObserver::onCompleted));
-      clientWatches.values().forEach(map -> map.values().forEach(
-          streamObservers -> streamObservers.forEach(StreamObserver::onCompleted)));
-    } finally {
-      lock.writeLock().unlock();
-    }
+    cancelAllBackendWatch();
+    clientWatches.keySet().forEach(this::cancelAllClientWatch);
   }
 }
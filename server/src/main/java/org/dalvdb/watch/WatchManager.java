@@ -26,10 +26,51 @@ import org.dalvdb.proto.ClientProto;
 import java.util.List;
 
 public interface WatchManager {
-  void addBackendWatch(String key, StreamObserver<BackendProto.WatchResponse> responseObserver);
+  default void addBackendWatch(String key, StreamObserver<BackendProto.WatchResponse> responseObserver) {
+    addBackendWatch(key, false, responseObserver);
+  }
 
-  void addClientWatch(String userId, String key, StreamObserver<ClientProto.WatchResponse> responseObserver);
+  default void addBackendWatch(String key, boolean batched,
+                               StreamObserver<BackendProto.WatchResponse> responseObserver) {
+    addBackendWatch(key, batched, false, Common.Overflow.OVERFLOW_DEFAULT, responseObserver);
+  }
 
+  /**
+   * @param batched    whether the watcher receives the operations of a sync on the key in one response, otherwise it
+   *                   receives one response per operation
+   * @param latestOnly whether the watcher receives the operations of a sync from the last PUT or DEL on, and the
+   *                   responses of a user which are still queued are replaced by a newer one with a PUT or DEL
+   * @param overflow   what to do when the watcher's queue is full, OVERFLOW_DEFAULT to decide based on the
+   *                   configuration
+   */
+  void addBackendWatch(String key, boolean batched, boolean latestOnly, Common.Overflow overflow,
+                       StreamObserver<BackendProto.WatchResponse> responseObserver);
+
+  default void addClientWatch(String userId, String key,
+                              StreamObserver<ClientProto.WatchResponse> responseObserver) {
+    addClientWatch(userId, key, false, responseObserver);
+  }
+
+  default void addClientWatch(String userId, String key, boolean batched,
+                              StreamObserver<ClientProto.WatchResponse> responseObserver) {
+    addClientWatch(userId, key, batched, false, Common.Overflow.OVERFLOW_DEFAULT, responseObserver);
+  }
+
+  /**
+   * @param batched    whether the watcher receives the operations of a sync on the key in one response, otherwise it
+   *                   receives one response per operation
+   * @param latestOnly whether the watcher receives the operations of a sync from the last PUT or DEL on, and the
+   *                   responses of a user which are still queued are replaced by a newer one with a PUT or DEL
+   * @param overflow   what to do when the watcher's queue is full, OVERFLOW_DEFAULT to decide based on the
+   *                   configuration
+   */
+  void addClientWatch(String userId, String key, boolean batched, boolean latestOnly, Common.Overflow overflow,
+                      StreamObserver<ClientProto.WatchResponse> responseObserver);
+
+  /**
+   * Notify the watchers of the committed operations of a user, the watchers of a key receive them in the order of the
+   * calls, so it must be called while the user's writes are exclusive, before the next one is committed
+   */
   void notifyChange(String userId, List<Common.Operation> operations);
 
   void notifyChange(String userId, Common.Operation operation);
@@ -18,13 +18,30 @@
 package org.dalvdb.lock;
 
 import org.assertj.core.api.Assertions;
+import org.junit.After;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class UserLockManagerTest {
+  private final List<UserLockManager> managers = new ArrayList<>();
+
+  @After
+  public void close() {
+    managers.forEach(UserLockManager::close);
+  }
+
+  private UserLockManager newManager(int stripes, int maxDepth) {
+    UserLockManager manager = new UserLockManager(stripes, maxDepth, 2);
+    managers.add(manager);
+    return manager;
+  }
 
   @Test
   public void getWriteLockBlockReadLocks() throws InterruptedException {
@@ -32,7 +49,7 @@ public class UserLockManagerTest {
     assertThat(manager.tryWriteLock("esa", 0)).isTrue();
     AtomicReference<AssertionError> assertionError = new AtomicReference<>();
     Object monitor = new Object();
-    new Thread(() -> {
+    Thread thread = new Thread(() -> {
       synchronized (monitor) {
         try {
           assertThat(manager.tryReadLock("esa", 0)).isFalse();
@@ -44,8 +61,10 @@ public class UserLockManagerTest {
         }
         monitor.notify();
       }
-    }).start();
+    });
     synchronized (monitor) {
+      //started while holding the monitor, so the thread can not notify before the wait
+      thread.start();
       monitor.wait();
     }
     if (assertionError.get() != null)
@@ -60,11 +79,11 @@ public class UserLockManagerTest {
     Object monitor = new Object();
     AtomicReference<AssertionError> assertionError = new AtomicReference<>();
 
-    new Thread(() -> {
+    Thread thread = new Thread(() -> {
       try {
         assertThat(manager.tryReadLock("esa", 0)).isTrue();
         Object secondMonitor = new Object();
-        new Thread(() -> {
+        Thread second = new Thread(() -> {
           synchronized (secondMonitor) {
             try {
               assertThat(manager.tryWriteLock("esa", 0)).isFalse();
@@ -75,9 +94,10 @@ public class UserLockManagerTest {
             }
             secondMonitor.notify();
           }
-        }).start();
+        });
         synchronized (secondMonitor) {
           try {
+            second.start();
             secondMonitor.wait();
             manager.releaseReadLock("esa");
           } catch (InterruptedException e) {
@@ -92,9 +112,10 @@ public class UserLockManagerTest {
       synchronized (monitor) {
         monitor.notify();
       }
-    }).start();
-
+    });
     synchronized (monitor) {
+      //started while holding the monitor, so the thread can not notify before the wait
+      thread.start();
       monitor.wait();
     }
     if (assertionError.get() != null)
@@ -108,7 +129,7 @@ public class UserLockManagerTest {
     assertThat(manager.tryWriteLock("esa", 0)).isTrue();
     AtomicReference<AssertionError> assertionError = new AtomicReference<>();
     Object monitor = new Object();
-    new Thread(() -> {
+    Thread thread = new Thread(() -> {
       synchronized (monitor) {
         try {
           assertThat(manager.tryWriteLock("ali", 0)).isTrue();
@@ -120,8 +141,10 @@ public class UserLockManagerTest {
         }
         monitor.notify();
       }
-    }).start();
+    });
     synchronized (monitor) {
+      //started while holding the monitor, so the thread can not notify before the wait
+      thread.start();
       monitor.wait();
     }
     if (assertionError.get() != null)
@@ -130,15 +153,93 @@ public class UserLockManagerTest {
   }
 
   @Test
-  public void blockUntilRelease() throws InterruptedException {
-    UserLockManager manager = new UserLockManager(2);
+  public void lockManyUsers() throws InterruptedException {
+    UserLockManager manager = newManager(2, 64);
     assertThat(manager.tryReadLock("esa", 0)).isTrue();
     assertThat(manager.tryReadLock("sia", 0)).isTrue();
-    assertThat(manager.tryReadLock("nazi", 0)).isFalse();
-    manager.releaseReadLock("esa");
     assertThat(manager.tryReadLock("nazi", 0)).isTrue();
+    manager.releaseReadLock("esa");
     manager.releaseReadLock("sia");
     manager.releaseReadLock("nazi");
   }
 
+  @Test
+  public void usersOfTheSameStripeShareTheLock() throws InterruptedException {
+    UserLockManager manager = newManager(1, 64);
+    assertThat(manager.tryWriteLock("esa", 0)).isTrue();
+    assertThat(manager.tryReadLock("sia", 0)).isFalse();
+    manager.releaseWriteLock("esa");
+    assertThat(manager.tryReadLock("sia", 0)).isTrue();
+    manager.releaseReadLock("sia");
+  }
+
+  @Test
+  public void asyncLocksAreGrantedInOrderOnRelease() throws Exception {
+    UserLockManager manager = newManager(16, 64);
+    assertThat(manager.tryWriteLockAsync("esa", 10_000).get(1, TimeUnit.SECONDS)).isTrue();
+    CompletableFuture<Boolean> reader = manager.tryReadLockAsync("esa", 10_000);
+    CompletableFuture<Boolean> writer = manager.tryWriteLockAsync("esa", 10_000);
+    CompletableFuture<Boolean> lateReader = manager.tryReadLockAsync("esa", 10_000);
+    assertThat(reader).isNotDone();
+    manager.releaseWriteLock("esa");
+    assertThat(reader.get(10, TimeUnit.SECONDS)).isTrue();
+    //the reader behind a queued writer waits for it
+    assertThat(writer).isNotDone();
+    assertThat(lateReader).isNotDone();
+    manager.releaseReadLock("esa");
+    assertThat(writer.get(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(lateReader).isNotDone();
+    manager.releaseWriteLock("esa");
+    assertThat(lateReader.get(10, TimeUnit.SECONDS)).isTrue();
+    manager.releaseReadLock("esa");
+  }
+
+  @Test
+  public void asyncLockTimesOut() throws Exception {
+    UserLockManager manager = newManager(16, 64);
+    assertThat(manager.tryReadLock("esa", 0)).isTrue();
+    CompletableFuture<Boolean> writer = manager.tryWriteLockAsync("esa", 50);
+    CompletableFuture<Boolean> reader = manager.tryReadLockAsync("esa", 10_000);
+    assertThat(writer.get(10, TimeUnit.SECONDS)).isFalse();
+    //the expired writer no longer holds back the reader behind it
+    assertThat(reader.get(10, TimeUnit.SECONDS)).isTrue();
+    manager.releaseReadLock("esa");
+    manager.releaseReadLock("esa");
+    assertThat(manager.tryWriteLock("esa", 0)).isTrue();
+    manager.releaseWriteLock("esa");
+  }
+
+  @Test
+  public void asyncLockQueueIsBoundedPerUser() throws Exception {
+    UserLockManager manager = newManager(1, 2);
+    assertThat(manager.tryWriteLock("esa", 0)).isTrue();
+    CompletableFuture<Boolean> first = manager.tryWriteLockAsync("esa", 10_000);
+    CompletableFuture<Boolean> second = manager.tryWriteLockAsync("esa", 10_000);
+    assertThat(manager.tryWriteLockAsync("esa", 10_000).get(1, TimeUnit.SECONDS)).isFalse();
+    //another user of the same stripe still has room in the queue
+    CompletableFuture<Boolean> other = manager.tryWriteLockAsync("sia", 10_000);
+    assertThat(other).isNotDone();
+    manager.releaseWriteLock("esa");
+    assertThat(first.get(10, TimeUnit.SECONDS)).isTrue();
+    manager.releaseWriteLock("esa");
+    assertThat(second.get(10, TimeUnit.SECONDS)).isTrue();
+    //a dequeued request frees its place in the queue
+    CompletableFuture<Boolean> third = manager.tryWriteLockAsync("esa", 10_000);
+    assertThat(third).isNotDone();
+    manager.releaseWriteLock("esa");
+    assertThat(other.get(10, TimeUnit.SECONDS)).isTrue();
+    manager.releaseWriteLock("sia");
+    assertThat(third.get(10, TimeUnit.SECONDS)).isTrue();
+    manager.releaseWriteLock("esa");
+  }
+
+  @Test
+  public void closeFailsTheWaitingRequests() throws Exception {
+    UserLockManager manager = newManager(1, 64);
+    assertThat(manager.tryWriteLock("esa", 0)).isTrue();
+    CompletableFuture<Boolean> waiting = manager.tryWriteLockAsync("esa", 10_000);
+    assertThat(waiting).isNotDone();
+    manager.close();
+    assertThat(waiting.get(1, TimeUnit.SECONDS)).isFalse();
+  }
 }
\ No newline at end of file
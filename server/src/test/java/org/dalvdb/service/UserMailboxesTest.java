@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.service;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import org.dalvdb.storage.StorageService;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class UserMailboxesTest {
+
+  private static Common.Operation put(String key, String value) {
+    return Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey(key)
+        .setVal(ByteString.copyFromUtf8(value))
+        .build();
+  }
+
+  @Test
+  public void queuedWritesAreBatched() throws Exception {
+    List<List<Common.Operation>> batches = Collections.synchronizedList(new ArrayList<>());
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.doAnswer(invocation -> batches.add(new ArrayList<>(invocation.getArgument(1))))
+        .when(storage).addOperations(Mockito.eq("esa"), Mockito.anyList(), Mockito.any());
+    UserMailboxes mailboxes = new UserMailboxes(storage);
+    try {
+      CountDownLatch started = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      CompletableFuture<Integer> busy = mailboxes.submit("esa", () -> {
+        started.countDown();
+        return release.await(10, TimeUnit.SECONDS) ? 1 : 0;
+      });
+      assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+      //queued while the mailbox is busy
+      List<CompletableFuture<Void>> writes = new ArrayList<>();
+      writes.add(mailboxes.submit("esa", put("name", "esa"), Common.Durability.DEFAULT));
+      writes.add(mailboxes.submit("esa", put("age", "30"), Common.Durability.DEFAULT));
+      writes.add(mailboxes.submit("esa", put("tmp", "x"), Common.Durability.NO_WAL));
+      release.countDown();
+      assertThat(busy.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+      for (CompletableFuture<Void> write : writes)
+        write.get(10, TimeUnit.SECONDS);
+      assertThat(batches).containsExactly(
+          List.of(put("name", "esa"), put("age", "30")),
+          List.of(put("tmp", "x")));
+    } finally {
+      mailboxes.close();
+    }
+  }
+
+  @Test
+  public void tasksOfAUserRunInOrder() throws Exception {
+    StorageService storage = Mockito.mock(StorageService.class);
+    UserMailboxes mailboxes = new UserMailboxes(storage);
+    try {
+      List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+      List<CompletableFuture<Integer>> results = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        int n = i;
+        results.add(mailboxes.submit("esa", () -> {
+          order.add(n);
+          return n;
+        }));
+      }
+      for (CompletableFuture<Integer> result : results)
+        result.get(10, TimeUnit.SECONDS);
+      for (int i = 0; i < 100; i++)
+        assertThat(order.get(i)).isEqualTo(i);
+    } finally {
+      mailboxes.close();
+    }
+  }
+
+  @Test
+  public void failuresAreReportedToTheCaller() throws Exception {
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.doThrow(new IllegalStateException("broken"))
+        .when(storage).addOperations(Mockito.eq("esa"), Mockito.anyList(), Mockito.any());
+    UserMailboxes mailboxes = new UserMailboxes(storage);
+    try {
+      CompletableFuture<Void> write = mailboxes.submit("esa", put("name", "esa"), Common.Durability.DEFAULT);
+      assertThatThrownBy(() -> write.get(10, TimeUnit.SECONDS))
+          .isInstanceOf(ExecutionException.class)
+          .hasCauseInstanceOf(IllegalStateException.class);
+      //the mailbox keeps working after a failure
+      assertThat(mailboxes.submit("esa", () -> "ok").get(10, TimeUnit.SECONDS)).isEqualTo("ok");
+    } finally {
+      mailboxes.close();
+    }
+  }
+}
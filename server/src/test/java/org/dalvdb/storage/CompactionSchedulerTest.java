@@ -20,11 +20,12 @@ package org.dalvdb.storage;
 import org.dalvdb.DalvConfig;
 import org.junit.Test;
 import org.mockito.Mockito;
-import org.rocksdb.RocksIterator;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -32,41 +33,28 @@ import static org.assertj.core.api.Assertions.assertThat;
 public class CompactionSchedulerTest {
 
   @Test
-  public void testPreFillCompaction() throws InterruptedException {
-    Object monitor = new Object();
-    List<String> calls = new ArrayList<>();
-    AtomicInteger twoIsValid = new AtomicInteger(2);
-    AtomicInteger twoKey = new AtomicInteger(2);
-    RocksIterator mockIterator = Mockito.mock(RocksIterator.class);
-    Mockito.when(mockIterator.isValid()).thenAnswer(invocation -> twoIsValid.getAndDecrement() > 0);
-    Mockito.when(mockIterator.key()).thenAnswer(invocation -> {
-      int i = twoKey.getAndDecrement();
-      if (i == 2) {
-        return "key1".getBytes();
-      } else if (i == 1)
-        return "key2".getBytes();
-      else throw new IllegalStateException();
-    });
+  public void testBackloggedCompaction() throws InterruptedException {
+    List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch compacted = new CountDownLatch(2);
     RocksStorageService mockStorage = Mockito.mock(RocksStorageService.class);
-    Mockito.when(mockStorage.keyIterator()).thenReturn(mockIterator);
+    Mockito.doAnswer(invocation -> {
+      CompactionBacklog.PendingVisitor visitor = invocation.getArgument(0);
+      visitor.visit("key1", 3);
+      visitor.visit("key2", 3);
+      return null;
+    }).when(mockStorage).forEachBacklogged(Mockito.any());
     Mockito.doAnswer(invocation -> {
       calls.add(invocation.getArgument(0));
-      synchronized (monitor) {
-        monitor.notify();
-      }
-      return monitor;
+      compacted.countDown();
+      return null;
     })
         .when(mockStorage).compact(Mockito.anyString());
     DalvConfig.set(DalvConfig.COMPACTION_DELAY, 1L);
     DalvConfig.set(DalvConfig.COMPACTION_INTERVAL, 2L);
+    DalvConfig.set(DalvConfig.COMPACTION_THREADS, 1);
     CompactionScheduler cs = new CompactionScheduler(mockStorage);
     cs.startScheduler();
-    synchronized (monitor) {
-      monitor.wait();
-    }
-    synchronized (monitor) {
-      monitor.wait();
-    }
+    assertThat(compacted.await(10, TimeUnit.SECONDS)).isTrue();
     assertThat(calls.size()).isEqualTo(2);
     assertThat(calls.get(0)).isEqualTo("key1");
     assertThat(calls.get(1)).isEqualTo("key2");
@@ -74,22 +62,18 @@ public class CompactionSchedulerTest {
 
   @Test
   public void testOrderOfCompaction() throws InterruptedException {
-    Object monitor = new Object();
-    List<String> calls = new ArrayList<>();
-    RocksIterator mockIterator = Mockito.mock(RocksIterator.class);
-    Mockito.when(mockIterator.isValid()).thenReturn(false);
+    List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch compacted = new CountDownLatch(3);
     RocksStorageService mockStorage = Mockito.mock(RocksStorageService.class);
-    Mockito.when(mockStorage.keyIterator()).thenReturn(mockIterator);
     Mockito.doAnswer(invocation -> {
       calls.add(invocation.getArgument(0));
-      synchronized (monitor) {
-        monitor.notify();
-      }
-      return monitor;
+      compacted.countDown();
+      return null;
     })
         .when(mockStorage).compact(Mockito.anyString());
     DalvConfig.set(DalvConfig.COMPACTION_DELAY, 1L);
     DalvConfig.set(DalvConfig.COMPACTION_INTERVAL, 2L);
+    DalvConfig.set(DalvConfig.COMPACTION_THREADS, 1);
     CompactionScheduler cs = new CompactionScheduler(mockStorage);
     cs.startScheduler();
     cs.updateReceived("key1");
@@ -98,19 +82,36 @@ public class CompactionSchedulerTest {
     cs.updateReceived("key2");
     cs.updateReceived("key3");
     cs.updateReceived("key3");
-    synchronized (monitor) {
-      monitor.wait();
-    }
-    synchronized (monitor) {
-      monitor.wait();
-    }
-    synchronized (monitor) {
-      monitor.wait();
-    }
+    assertThat(compacted.await(10, TimeUnit.SECONDS)).isTrue();
     assertThat(calls.size()).isEqualTo(3);
     assertThat(calls.get(0)).isEqualTo("key1");
     assertThat(calls.get(1)).isEqualTo("key2");
     assertThat(calls.get(2)).isEqualTo("key3");
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testPriorityOfCompaction() throws InterruptedException {
+    List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch compacted = new CountDownLatch(3);
+    RocksStorageService mockStorage = Mockito.mock(RocksStorageService.class);
+    Mockito.doAnswer(invocation -> {
+      calls.add(invocation.getArgument(0));
+      compacted.countDown();
+      return null;
+    })
+        .when(mockStorage).compact(Mockito.anyString());
+    DalvConfig.set(DalvConfig.COMPACTION_DELAY, 1L);
+    DalvConfig.set(DalvConfig.COMPACTION_INTERVAL, 2L);
+    DalvConfig.set(DalvConfig.COMPACTION_THREADS, 1);
+    CompactionScheduler cs = new CompactionScheduler(mockStorage);
+    cs.startScheduler();
+    cs.updateReceived("key1", 1);
+    cs.updateReceived("key2", 2);
+    cs.updateReceived("key3", 1);
+    cs.updateReceived("key2", 3);
+    cs.updateReceived("key3", 2);
+    assertThat(compacted.await(10, TimeUnit.SECONDS)).isTrue();
+    cs.close();
+    assertThat(calls).containsExactly("key2", "key3", "key1");
+  }
+}
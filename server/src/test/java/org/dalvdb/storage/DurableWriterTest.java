@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import org.dalvdb.DalvConfig;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.rocksdb.RocksDB;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DurableWriterTest {
+
+  @BeforeClass
+  public static void setUp() {
+    RocksDB.loadLibrary();
+  }
+
+  private static Common.Operation put(String key) {
+    return Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey(key)
+        .setVal(ByteString.copyFrom("v".getBytes()))
+        .build();
+  }
+
+  @Test
+  public void resolveTest() {
+    String namespaces = DalvConfig.getStr(DalvConfig.DURABILITY_NAMESPACES);
+    DalvConfig.set(DalvConfig.DURABILITY_NAMESPACES, "stats.=NO_WAL, stats.daily.=ASYNC_WAL,session.=SYNC");
+    //resolving a level never touches the database
+    DurableWriter writer = new DurableWriter(null, Collections.emptyList());
+    try {
+      assertThat(writer.resolve(Common.Durability.DEFAULT, List.of(put("name")))).isEqualTo(Common.Durability.GROUP);
+      assertThat(writer.resolve(Common.Durability.DEFAULT, List.of(put("stats.total"))))
+          .isEqualTo(Common.Durability.NO_WAL);
+      assertThat(writer.resolve(Common.Durability.DEFAULT, List.of(put("stats.daily.mon"))))
+          .isEqualTo(Common.Durability.ASYNC_WAL);
+      assertThat(writer.resolve(Common.Durability.DEFAULT, List.of(put("stats.total"), put("session.id"))))
+          .isEqualTo(Common.Durability.SYNC);
+      assertThat(writer.resolve(Common.Durability.NO_WAL, List.of(put("session.id"))))
+          .isEqualTo(Common.Durability.NO_WAL);
+    } finally {
+      writer.close();
+      DalvConfig.set(DalvConfig.DURABILITY_NAMESPACES, namespaces);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import org.dalvdb.exception.InternalServerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class GroupCommitWriterTest {
+  private File dir;
+  private Options options;
+  private RocksDB rocksDB;
+
+  @BeforeClass
+  public static void setUpClass() {
+    RocksDB.loadLibrary();
+  }
+
+  @Before
+  public void setUp() throws IOException, RocksDBException {
+    dir = Files.createTempDirectory("group-commit").toFile();
+    options = new Options().setCreateIfMissing(true);
+    rocksDB = RocksDB.open(options, dir.getAbsolutePath());
+  }
+
+  @After
+  public void tearDown() {
+    rocksDB.close();
+    options.close();
+    File[] files = dir.listFiles();
+    if (files != null)
+      for (File file : files)
+        file.delete();
+    dir.delete();
+  }
+
+  @Test
+  public void concurrentWritesShareSyncsTest() throws Exception {
+    int writers = 32;
+    GroupCommitWriter groupCommit = new GroupCommitWriter(rocksDB, 64, 5_000);
+    ExecutorService es = Executors.newFixedThreadPool(writers);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<?>> writes = new ArrayList<>();
+      for (int i = 0; i < writers; i++) {
+        byte[] key = ("key" + i).getBytes();
+        writes.add(es.submit(() -> {
+          start.await();
+          try (WriteBatch wb = new WriteBatch()) {
+            wb.put(key, key);
+            groupCommit.write(wb);
+          }
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> write : writes)
+        write.get(10, TimeUnit.SECONDS);
+    } finally {
+      es.shutdown();
+      groupCommit.close();
+    }
+    //every write is acknowledged after a sync, and the writes waiting together share it
+    assertThat(groupCommit.syncedWrites()).isEqualTo(writers);
+    assertThat(groupCommit.syncs()).isLessThan(writers);
+    for (int i = 0; i < writers; i++)
+      assertThat(rocksDB.get(("key" + i).getBytes())).isEqualTo(("key" + i).getBytes());
+  }
+
+  @Test
+  public void failedSyncRejectsLaterWritesTest() throws Exception {
+    RocksDB failing = mock(RocksDB.class);
+    doThrow(new RocksDBException("sync failed")).when(failing).flushWal(true);
+    GroupCommitWriter groupCommit = new GroupCommitWriter(failing, 64, 0);
+    try (WriteBatch wb = new WriteBatch()) {
+      wb.put("key".getBytes(), "value".getBytes());
+      try {
+        groupCommit.write(wb);
+        fail("the failed sync is not reported");
+      } catch (RocksDBException e) {
+        assertThat(e.getMessage()).isEqualTo("sync failed");
+      }
+      try {
+        groupCommit.write(wb);
+        fail("a write after a failed sync is accepted");
+      } catch (InternalServerException e) {
+        assertThat(e.getCause()).hasCauseInstanceOf(RocksDBException.class);
+      }
+      //the rejected write is not applied
+      verify(failing, times(1)).write(any(WriteOptions.class), any(WriteBatch.class));
+    } finally {
+      groupCommit.close();
+    }
+  }
+}
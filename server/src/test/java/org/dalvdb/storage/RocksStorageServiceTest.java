@@ -20,7 +20,9 @@ package org.dalvdb.storage;
 import com.google.protobuf.ByteString;
 import dalv.common.Common;
 import org.dalvdb.DalvConfig;
+import org.dalvdb.common.util.ByteUtil;
 import org.dalvdb.common.util.OpUtil;
+import org.dalvdb.lock.UserLockManager;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -28,14 +30,26 @@ import org.junit.Test;
 import org.rocksdb.Options;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.StringAppendOperator;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 
 public class RocksStorageServiceTest {
 
@@ -158,6 +172,26 @@ public class RocksStorageServiceTest {
     assertThat(ops2.get(2)).isEqualTo(op3);
   }
 
+  @Test
+  public void conflictAfterSnapshotTest() {
+    Common.Operation name = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFrom("esa".getBytes()))
+        .build();
+    Common.Operation age = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("age")
+        .setVal(ByteString.copyFrom(ByteBuffer.allocate(4).putInt(32).array()))
+        .build();
+    storageService.addOperation("esa", name);
+    int snapshotId = storageService.snapshot("esa");
+    storageService.addOperation("esa", age);
+    assertThat(storageService.handleOperations("esa", Collections.singletonList(name), snapshotId)).isTrue();
+    assertThat(storageService.handleOperations("esa", Collections.singletonList(age), snapshotId)).isFalse();
+    assertThat(storageService.handleOperations("esa", Collections.singletonList(name), snapshotId + 1)).isFalse();
+  }
+
   @Test
   public void testGetValue() {
     storageService.addOperation("esa", Common.Operation.newBuilder()
@@ -193,6 +227,40 @@ public class RocksStorageServiceTest {
         .getInt()).isEqualTo(30);
   }
 
+  @Test
+  public void testGetListValue() {
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("colors")
+        .setVal(ByteString.copyFrom("red".getBytes()))
+        .build());
+    int snapshotId = storageService.snapshot("esa");
+    boolean written = storageService.handleOperations("esa", List.of(
+        Common.Operation.newBuilder()
+            .setType(Common.OpType.ADD_TO_LIST)
+            .setKey("colors")
+            .setVal(ByteString.copyFrom("blue".getBytes()))
+            .build(),
+        Common.Operation.newBuilder()
+            .setType(Common.OpType.ADD_TO_LIST)
+            .setKey("colors")
+            .setVal(ByteString.copyFrom("green".getBytes()))
+            .build(),
+        Common.Operation.newBuilder()
+            .setType(Common.OpType.REMOVE_FROM_LIST)
+            .setKey("colors")
+            .setVal(ByteString.copyFrom("red".getBytes()))
+            .build()), snapshotId);
+    assertThat(written).isTrue();
+    List<byte[]> values = ByteUtil.decodeList(storageService.getValue("esa", "colors").toByteArray());
+    assertThat(values).hasSize(2);
+    assertThat(new String(values.get(0))).isEqualTo("blue");
+    assertThat(new String(values.get(1))).isEqualTo("green");
+
+    storageService.delete("esa");
+    assertThat(storageService.getValue("esa", "colors").isEmpty()).isTrue();
+  }
+
   @Test
   public void compactSeveralPutTest() {
     storageService.addOperation("esa", Common.Operation.newBuilder()
@@ -308,13 +376,18 @@ public class RocksStorageServiceTest {
         .build());
     storageService.compact("esa");
     List<Common.Operation> ops = storageService.get("esa", 0);
-    assertThat(ops.size()).isEqualTo(3);
-    assertThat(ops.get(0).getType()).isEqualTo(Common.OpType.ADD_TO_LIST);
-    assertThat(ops.get(0).getVal()).isEqualTo(ByteString.copyFrom("esa2".getBytes()));
+    //the PUT also dropped what the list had before it, so it is kept with the REMOVE_FROM_LIST of its item
+    assertThat(ops.size()).isEqualTo(5);
+    assertThat(ops.get(0).getType()).isEqualTo(Common.OpType.PUT);
+    assertThat(ops.get(0).getVal()).isEqualTo(ByteString.copyFrom("esa1".getBytes()));
     assertThat(ops.get(1).getType()).isEqualTo(Common.OpType.ADD_TO_LIST);
-    assertThat(ops.get(1).getVal()).isEqualTo(ByteString.copyFrom("esa3".getBytes()));
-    assertThat(ops.get(2).getType()).isEqualTo(Common.OpType.SNAPSHOT);
-    assertThat(ops.get(2).getSnapshotId()).isEqualTo(1);
+    assertThat(ops.get(1).getVal()).isEqualTo(ByteString.copyFrom("esa2".getBytes()));
+    assertThat(ops.get(2).getType()).isEqualTo(Common.OpType.REMOVE_FROM_LIST);
+    assertThat(ops.get(2).getVal()).isEqualTo(ByteString.copyFrom("esa1".getBytes()));
+    assertThat(ops.get(3).getType()).isEqualTo(Common.OpType.ADD_TO_LIST);
+    assertThat(ops.get(3).getVal()).isEqualTo(ByteString.copyFrom("esa3".getBytes()));
+    assertThat(ops.get(4).getType()).isEqualTo(Common.OpType.SNAPSHOT);
+    assertThat(ops.get(4).getSnapshotId()).isEqualTo(1);
   }
 
 
@@ -370,4 +443,545 @@ public class RocksStorageServiceTest {
     assertThat(ops.get(2).getType()).isEqualTo(Common.OpType.SNAPSHOT);
     assertThat(ops.get(2).getSnapshotId()).isEqualTo(3);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void snapshotIndexAfterCompactionTest() {
+    Common.Operation put = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("blue".getBytes()))
+        .build();
+    storageService.addOperation("esa", put);
+    assertThat(storageService.snapshot("esa")).isEqualTo(1);
+    storageService.addOperation("esa", put);
+    assertThat(storageService.snapshot("esa")).isEqualTo(2);
+    List<Common.Operation> ops = storageService.get("esa", 1);
+    assertThat(ops.size()).isEqualTo(2);
+    assertThat(ops.get(0)).isEqualTo(put);
+    assertThat(ops.get(1).getSnapshotId()).isEqualTo(2);
+
+    storageService.compact("esa");
+    assertThat(storageService.get("esa", 2)).isEmpty();
+    ops = storageService.get("esa", 1);
+    assertThat(ops.size()).isEqualTo(3);
+    assertThat(ops.get(0)).isEqualTo(OpUtil.REMOVE_ALL_OP);
+    assertThat(ops.get(1)).isEqualTo(put);
+    assertThat(ops.get(2).getSnapshotId()).isEqualTo(2);
+  }
+
+  @Test
+  public void incrementalCompactionTest() {
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("blue".getBytes()))
+        .build());
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setKey("names")
+        .setVal(ByteString.copyFrom("esa1".getBytes()))
+        .build());
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setKey("names")
+        .setVal(ByteString.copyFrom("esa2".getBytes()))
+        .build());
+    storageService.compact("esa");
+    assertThat(storageService.get("esa", 0).size()).isEqualTo(4);
+
+    //the new operations supersede records of the compacted prefix
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.REMOVE_FROM_LIST)
+        .setKey("names")
+        .setVal(ByteString.copyFrom("esa1".getBytes()))
+        .build());
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("red".getBytes()))
+        .build());
+    storageService.compact("esa");
+    List<Common.Operation> ops = storageService.get("esa", 0);
+    assertThat(ops.size()).isEqualTo(3);
+    assertThat(ops.get(0).getType()).isEqualTo(Common.OpType.ADD_TO_LIST);
+    assertThat(ops.get(0).getVal()).isEqualTo(ByteString.copyFrom("esa2".getBytes()));
+    assertThat(ops.get(1).getType()).isEqualTo(Common.OpType.PUT);
+    assertThat(ops.get(1).getVal()).isEqualTo(ByteString.copyFrom("red".getBytes()));
+    assertThat(ops.get(2).getType()).isEqualTo(Common.OpType.SNAPSHOT);
+    assertThat(ops.get(2).getSnapshotId()).isEqualTo(2);
+
+    storageService.compact("esa");
+    assertThat(storageService.get("esa", 0)).isEqualTo(ops);
+  }
+
+  @Test
+  public void compactionOfLockedUserTest() throws Exception {
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("blue".getBytes()))
+        .build());
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.DEL)
+        .setKey("theme")
+        .build());
+    //the compaction does not wait for a busy user, it drops its result and queues the user again
+    assertThat(UserLockManager.getInstance().tryWriteLock("esa", 10)).isTrue();
+    ExecutorService es = Executors.newSingleThreadExecutor();
+    try {
+      es.submit(() -> storageService.compact("esa")).get(5, TimeUnit.SECONDS);
+      assertThat(storageService.get("esa", 0)).hasSize(2);
+    } finally {
+      UserLockManager.getInstance().releaseWriteLock("esa");
+      es.shutdown();
+    }
+    storageService.compact("esa");
+    List<Common.Operation> ops = storageService.get("esa", 0);
+    assertThat(ops.size()).isEqualTo(1);
+    assertThat(ops.get(0).getType()).isEqualTo(Common.OpType.SNAPSHOT);
+  }
+
+  @Test
+  public void compactionBacklogTest() {
+    Common.Operation put = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("blue".getBytes()))
+        .build();
+    Common.Operation add = Common.Operation.newBuilder()
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setKey("colors")
+        .setVal(ByteString.copyFrom("blue".getBytes()))
+        .build();
+    storageService.addOperation("esa", put);
+    assertThat(storageService.handleOperations("esa", Arrays.asList(add, add), 0)).isTrue();
+    Map<String, Long> backlogged = new HashMap<>();
+    storageService.forEachBacklogged(backlogged::put);
+    assertThat(backlogged).containsEntry("esa", 3L);
+
+    storageService.compact("esa");
+    backlogged.clear();
+    storageService.forEachBacklogged(backlogged::put);
+    assertThat(backlogged).doesNotContainKey("esa");
+  }
+
+  @Test
+  public void inlineCompactionTest() throws RocksDBException {
+    String dataDir = DalvConfig.getStr(DalvConfig.DATA_DIR);
+    String inlineDir = UUID.randomUUID().toString();
+    Common.Operation put1 = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("blue".getBytes()))
+        .build();
+    Common.Operation put2 = put1.toBuilder().setVal(ByteString.copyFrom("red".getBytes())).build();
+    Common.Operation add1 = Common.Operation.newBuilder()
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setKey("names")
+        .setVal(ByteString.copyFrom("esa1".getBytes()))
+        .build();
+    Common.Operation add2 = add1.toBuilder().setVal(ByteString.copyFrom("esa2".getBytes())).build();
+    Common.Operation remove1 = add1.toBuilder().setType(Common.OpType.REMOVE_FROM_LIST).build();
+    DalvConfig.set(DalvConfig.DATA_DIR, inlineDir);
+    DalvConfig.set(DalvConfig.COMPACTION_MODE, "inline");
+    RocksStorageService inlineStorage = new RocksStorageService();
+    try {
+      inlineStorage.addOperation("esa", put1);
+      inlineStorage.addOperation("esa", add1);
+      inlineStorage.addOperation("esa", put2);
+      inlineStorage.addOperation("esa", add2);
+      inlineStorage.addOperation("esa", remove1);
+      //superseded records are deleted by the writes, no compaction has run yet
+      assertThat(inlineStorage.get("esa", 0)).containsExactly(put2, add2, remove1);
+
+      inlineStorage.compact("esa");
+      List<Common.Operation> ops = inlineStorage.get("esa", 0);
+      assertThat(ops.size()).isEqualTo(3);
+      assertThat(ops.subList(0, 2)).containsExactly(put2, add2);
+      assertThat(ops.get(2).getType()).isEqualTo(Common.OpType.SNAPSHOT);
+
+      //a PUT is not superseded by the REMOVE_FROM_LIST of its value
+      Common.Operation putFriend = add1.toBuilder().setType(Common.OpType.PUT).setKey("friends").build();
+      Common.Operation removeFriend = putFriend.toBuilder().setType(Common.OpType.REMOVE_FROM_LIST).build();
+      inlineStorage.addOperation("esa", putFriend);
+      inlineStorage.addOperation("esa", removeFriend);
+      assertThat(inlineStorage.get("esa", ops.get(2).getSnapshotId())).containsExactly(putFriend, removeFriend);
+      inlineStorage.compact("esa");
+      assertThat(inlineStorage.get("esa", 0)).contains(putFriend, removeFriend);
+      assertThat(inlineStorage.getValue("esa", "friends")).isEqualTo(ByteString.EMPTY);
+    } finally {
+      inlineStorage.close();
+      DalvConfig.set(DalvConfig.COMPACTION_MODE, "background");
+      DalvConfig.set(DalvConfig.DATA_DIR, dataDir);
+      RocksDB.destroyDB(inlineDir, new Options());
+    }
+  }
+
+  @Test
+  public void compactPutOfRemovedItemTest() {
+    Common.Operation add = Common.Operation.newBuilder()
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setKey("names")
+        .setVal(ByteString.copyFrom("z".getBytes()))
+        .build();
+    Common.Operation put = add.toBuilder().setType(Common.OpType.PUT).setVal(ByteString.copyFrom("x".getBytes())).build();
+    Common.Operation remove = put.toBuilder().setType(Common.OpType.REMOVE_FROM_LIST).build();
+    storageService.addOperation("esa", add);
+    storageService.addOperation("esa", put);
+    storageService.addOperation("esa", remove);
+    storageService.compact("esa");
+    List<Common.Operation> ops = storageService.get("esa", 0);
+    assertThat(ops.size()).isEqualTo(3);
+    assertThat(ops.subList(0, 2)).containsExactly(put, remove);
+    assertThat(ops.get(2).getType()).isEqualTo(Common.OpType.SNAPSHOT);
+    assertThat(storageService.getValue("esa", "names")).isEqualTo(ByteString.EMPTY);
+
+    //the PUT is in the compacted prefix when its item is removed
+    Common.Operation addFriend = add.toBuilder().setKey("friends").build();
+    Common.Operation putFriend = put.toBuilder().setKey("friends").build();
+    Common.Operation removeFriend = remove.toBuilder().setKey("friends").build();
+    storageService.addOperation("esa", addFriend);
+    storageService.addOperation("esa", putFriend);
+    storageService.compact("esa");
+    storageService.addOperation("esa", removeFriend);
+    storageService.compact("esa");
+    assertThat(storageService.get("esa", 0)).contains(putFriend, removeFriend).doesNotContain(addFriend);
+    assertThat(storageService.getValue("esa", "friends")).isEqualTo(ByteString.EMPTY);
+  }
+
+  @Test
+  public void collapseSupersededInBatchTest() {
+    Common.Operation put1 = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("blue".getBytes()))
+        .build();
+    Common.Operation put2 = put1.toBuilder().setVal(ByteString.copyFrom("red".getBytes())).build();
+    Common.Operation add = Common.Operation.newBuilder()
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setKey("names")
+        .setVal(ByteString.copyFrom("esa1".getBytes()))
+        .build();
+    Common.Operation remove = add.toBuilder().setType(Common.OpType.REMOVE_FROM_LIST).build();
+    Common.Operation snapshot = Common.Operation.newBuilder()
+        .setType(Common.OpType.SNAPSHOT)
+        .setSnapshotId(1)
+        .build();
+    assertThat(storageService.handleOperations("esa", Arrays.asList(put1, add, put2, remove), 0)).isTrue();
+    assertThat(storageService.get("esa", 0)).containsExactly(put2, remove);
+    assertThat(storageService.getValue("esa", "theme").substring(4).toStringUtf8()).isEqualTo("red");
+
+    //nothing is collapsed across a snapshot
+    assertThat(OperationCollapser.collapse(Arrays.asList(put1, snapshot, put2)))
+        .containsExactly(put1, snapshot, put2);
+
+    //a PUT resets the list, so the REMOVE_FROM_LIST of its value does not supersede it
+    Common.Operation addOther = add.toBuilder().setVal(ByteString.copyFrom("esa2".getBytes())).build();
+    Common.Operation putList = add.toBuilder().setType(Common.OpType.PUT).build();
+    storageService.addOperation("esa", addOther);
+    storageService.addOperations("esa", Arrays.asList(putList, remove), Common.Durability.DEFAULT);
+    assertThat(storageService.get("esa", 0)).endsWith(putList, remove);
+    assertThat(storageService.getValue("esa", "names")).isEqualTo(ByteString.EMPTY);
+  }
+
+  @Test
+  public void concurrentWritesTest() throws Exception {
+    int users = 16;
+    ExecutorService es = Executors.newFixedThreadPool(users);
+    List<Future<?>> writes = new ArrayList<>();
+    for (int i = 0; i < users; i++) {
+      String userId = "user" + i;
+      writes.add(es.submit(() -> {
+        for (int j = 0; j < 20; j++) {
+          storageService.addOperation(userId, Common.Operation.newBuilder()
+              .setType(Common.OpType.PUT)
+              .setKey("counter")
+              .setVal(ByteString.copyFrom(String.valueOf(j).getBytes()))
+              .build());
+        }
+      }));
+    }
+    for (Future<?> write : writes)
+      write.get(10, TimeUnit.SECONDS);
+    es.shutdown();
+    for (int i = 0; i < users; i++) {
+      String userId = "user" + i;
+      assertThat(storageService.get(userId, 0)).hasSize(20);
+      List<byte[]> value = ByteUtil.decodeList(storageService.getValue(userId, "counter").toByteArray());
+      assertThat(value).hasSize(1);
+      assertThat(value.get(0)).isEqualTo("19".getBytes());
+      storageService.delete(userId);
+    }
+  }
+
+  @Test
+  public void cacheTest() {
+    UserCache cache = storageService.cache();
+    Common.Operation name = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFrom("esa".getBytes()))
+        .build();
+    Common.Operation newName = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFrom("isa".getBytes()))
+        .build();
+    storageService.addOperation("esa", name);
+    assertThat(storageService.get("esa", 0)).containsExactly(name);
+    long hits = cache.hits();
+    assertThat(storageService.get("esa", 0)).containsExactly(name);
+    assertThat(ByteUtil.decodeList(storageService.getValue("esa", "name").toByteArray()).get(0))
+        .isEqualTo("esa".getBytes());
+    assertThat(ByteUtil.decodeList(storageService.getValue("esa", "name").toByteArray()).get(0))
+        .isEqualTo("esa".getBytes());
+    assertThat(cache.hits()).isEqualTo(hits + 2);
+
+    //writes extend the cached tail and drop the cached value of the modified keys
+    int snapshotId = storageService.snapshot("esa");
+    assertThat(storageService.handleOperations("esa", Collections.singletonList(newName), snapshotId)).isTrue();
+    assertThat(storageService.get("esa", snapshotId)).containsExactly(newName);
+    assertThat(ByteUtil.decodeList(storageService.getValue("esa", "name").toByteArray()).get(0))
+        .isEqualTo("isa".getBytes());
+    assertThat(cache.weight()).isPositive();
+
+    storageService.delete("esa");
+    assertThat(storageService.get("esa", 0)).isEmpty();
+    assertThat(storageService.getValue("esa", "name").isEmpty()).isTrue();
+  }
+
+  @Test
+  public void concurrentSnapshotTest() throws Exception {
+    ExecutorService es = Executors.newFixedThreadPool(8);
+    List<Future<Integer>> snapshots = new ArrayList<>();
+    for (int i = 0; i < 32; i++)
+      snapshots.add(es.submit(() -> storageService.snapshot("esa")));
+    Set<Integer> ids = new HashSet<>();
+    for (Future<Integer> snapshot : snapshots)
+      ids.add(snapshot.get(10, TimeUnit.SECONDS));
+    es.shutdown();
+    assertThat(ids).hasSize(32).contains(1, 32);
+    assertThat(storageService.snapshot("esa")).isEqualTo(33);
+    assertThat(storageService.get("esa", 32)).hasSize(1);
+  }
+
+  @Test
+  public void lockFreeReadTest() throws Exception {
+    //a value read before a write must not be cached after it
+    UserCache cache = storageService.cache();
+    long stamp = cache.stamp("esa");
+    cache.appended("esa", Collections.emptyList());
+    cache.loadValue("esa", stamp, "name", ByteString.copyFromUtf8("stale"));
+    assertThat(cache.getValue("esa", "name")).isNull();
+
+    ExecutorService es = Executors.newSingleThreadExecutor();
+    Future<?> writer = es.submit(() -> {
+      for (int i = 1; i <= 200; i++)
+        storageService.addOperation("esa", Common.Operation.newBuilder()
+            .setType(Common.OpType.PUT)
+            .setKey("counter")
+            .setVal(ByteString.copyFrom(ByteBuffer.allocate(4).putInt(i).array()))
+            .build());
+    });
+    int last = 0;
+    while (!writer.isDone()) {
+      List<Common.Operation> ops = storageService.get("esa", 0);
+      assertThat(ops.size()).isGreaterThanOrEqualTo(last);
+      for (int i = 0; i < ops.size(); i++)
+        assertThat(ops.get(i).getVal().asReadOnlyByteBuffer().getInt()).isEqualTo(i + 1);
+      last = ops.size();
+    }
+    writer.get(10, TimeUnit.SECONDS);
+    es.shutdown();
+    assertThat(storageService.get("esa", 0)).hasSize(200);
+    List<byte[]> value = ByteUtil.decodeList(storageService.getValue("esa", "counter").toByteArray());
+    assertThat(ByteBuffer.wrap(value.get(0)).getInt()).isEqualTo(200);
+  }
+
+  @Test
+  public void zstdCompressionIsRejectedTest() {
+    DalvConfig.set(DalvConfig.ROCKSDB_BOTTOMMOST_COMPRESSION, "zstd");
+    try {
+      new RocksTuning().close();
+      fail("zstd compression is accepted");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("zstd");
+    } finally {
+      DalvConfig.set(DalvConfig.ROCKSDB_BOTTOMMOST_COMPRESSION, "lz4");
+    }
+  }
+
+  @Test
+  public void cachedTailIsBoundedTest() {
+    UserCache cache = new UserCache(1024 * 1024, 2);
+    Common.Operation op = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFromUtf8("esa"))
+        .build();
+    cache.snapshotted("esa", 1);
+    long empty = cache.weight();
+    cache.appended("esa", Collections.singletonList(op));
+    cache.appended("esa", Collections.singletonList(op));
+    assertThat(cache.getTail("esa", 1)).containsExactly(op, op);
+    assertThat(cache.weight()).isGreaterThan(empty);
+    //past the bound the tail is dropped rather than copied, and its weight released
+    cache.appended("esa", Collections.singletonList(op));
+    assertThat(cache.getTail("esa", 1)).isNull();
+    assertThat(cache.weight()).isEqualTo(empty);
+    cache.loadTail("esa", cache.stamp("esa"), 1, Arrays.asList(op, op, op));
+    assertThat(cache.getTail("esa", 1)).isNull();
+  }
+
+  @Test
+  public void loadDuringWriteTest() {
+    UserCache cache = storageService.cache();
+    List<Common.Operation> ops = Collections.singletonList(Common.Operation.newBuilder()
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setKey("names")
+        .setVal(ByteString.copyFromUtf8("esa"))
+        .build());
+    //stamps taken before the write and during it, both readers see the committed operation in the log
+    long before = cache.stamp("esa");
+    cache.writing("esa");
+    long during = cache.stamp("esa");
+    cache.loadTail("esa", before, 0, ops);
+    cache.loadTail("esa", during, 0, ops);
+    cache.appended("esa", ops);
+    cache.loadTail("esa", during, 0, ops);
+    cache.written("esa");
+    cache.loadTail("esa", during, 0, ops);
+    assertThat(cache.getTail("esa", 0)).isNull();
+
+    long after = cache.stamp("esa");
+    cache.loadTail("esa", after, 0, ops);
+    assertThat(cache.getTail("esa", 0)).isEqualTo(ops);
+  }
+
+  @Test
+  public void snapshotIdsOfAbsentUsersAreNotKeptTest() throws InterruptedException {
+    SnapshotIds snapshotIds = storageService.snapshotIds();
+    int counters = snapshotIds.size();
+    for (int i = 0; i < 100; i++)
+      assertThat(storageService.get("ghost" + i, 0)).isEmpty();
+    //the counters of the previous tests may be collected meanwhile
+    assertThat(snapshotIds.size()).isLessThanOrEqualTo(counters);
+
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFrom("esa".getBytes()))
+        .build());
+    int snapshotId = storageService.snapshot("esa");
+    SnapshotIds.Counter counter = snapshotIds.get("esa");
+    assertThat(counter.lastId()).isEqualTo(snapshotId);
+    //a counter in use is not replaced
+    System.gc();
+    assertThat(snapshotIds.get("esa")).isSameAs(counter);
+
+    //an unused counter is dropped and loaded again
+    counter = null;
+    for (int i = 0; i < 50 && snapshotIds.size() > 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(snapshotIds.size()).isZero();
+    assertThat(snapshotIds.lastId("esa")).isEqualTo(snapshotId);
+
+    storageService.delete("esa");
+    assertThat(snapshotIds.size()).isZero();
+    assertThat(snapshotIds.lastId("esa")).isZero();
+    assertThat(snapshotIds.size()).isZero();
+  }
+
+  @Test
+  public void relaxedDurabilityTest() throws InterruptedException {
+    DurableWriter writer = storageService.writer();
+    Common.Operation name = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFrom("esa".getBytes()))
+        .build();
+    Common.Operation age = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("age")
+        .setVal(ByteString.copyFrom(ByteBuffer.allocate(4).putInt(32).array()))
+        .build();
+    long asyncWrites = writer.writes(Common.Durability.ASYNC_WAL);
+    long noWalWrites = writer.writes(Common.Durability.NO_WAL);
+    storageService.addOperation("esa", name, Common.Durability.ASYNC_WAL);
+    storageService.addOperation("esa", age, Common.Durability.NO_WAL);
+    assertThat(writer.writes(Common.Durability.ASYNC_WAL)).isEqualTo(asyncWrites + 1);
+    assertThat(writer.writes(Common.Durability.NO_WAL)).isEqualTo(noWalWrites + 1);
+    assertThat(storageService.get("esa", 0)).containsExactly(name, age);
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while ((writer.unsyncedWrites() > 0 || writer.unflushedWrites() > 0) && System.currentTimeMillis() < deadline)
+      Thread.sleep(50);
+    assertThat(writer.unsyncedWrites()).isZero();
+    assertThat(writer.unflushedWrites()).isZero();
+    assertThat(writer.walSyncs()).isPositive();
+    assertThat(writer.flushes()).isPositive();
+  }
+
+  @Test
+  public void logFollowingNoWalWriteIsFlushedFirstTest() {
+    DurableWriter writer = storageService.writer();
+    Common.Operation age = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("age")
+        .setVal(ByteString.copyFrom(ByteBuffer.allocate(4).putInt(32).array()))
+        .build();
+    Common.Operation name = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFrom("esa".getBytes()))
+        .build();
+    storageService.addOperation("esa", age, Common.Durability.NO_WAL);
+    long flushes = writer.flushes();
+    //the write logged in the WAL must not be recovered without the NO_WAL one it builds on
+    storageService.addOperation("esa", name, Common.Durability.SYNC);
+    assertThat(writer.flushes()).isGreaterThan(flushes);
+    assertThat(writer.unflushedWrites()).isZero();
+    assertThat(storageService.get("esa", 0)).containsExactly(age, name);
+  }
+
+  @Test
+  public void legacyLogMigrationTest() throws RocksDBException {
+    String dataDir = DalvConfig.getStr(DalvConfig.DATA_DIR);
+    String legacyDir = UUID.randomUUID().toString();
+    Common.Operation op1 = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFrom("esa".getBytes()))
+        .build();
+    Common.Operation snapshot = Common.Operation.newBuilder()
+        .setType(Common.OpType.SNAPSHOT)
+        .setSnapshotId(1)
+        .build();
+    Common.Operation op2 = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("age")
+        .setVal(ByteString.copyFrom(ByteBuffer.allocate(4).putInt(30).array()))
+        .build();
+    try (Options options = new Options().setCreateIfMissing(true)
+        .setMergeOperator(new StringAppendOperator((char) (0)));
+         RocksDB legacy = RocksDB.open(options, legacyDir)) {
+      legacy.merge("esa".getBytes(), ByteUtil.opToByte(op1));
+      legacy.merge("esa".getBytes(), ByteUtil.opToByte(snapshot));
+      legacy.merge("esa".getBytes(), ByteUtil.opToByte(op2));
+    }
+    DalvConfig.set(DalvConfig.DATA_DIR, legacyDir);
+    RocksStorageService legacyStorage = new RocksStorageService();
+    try {
+      assertThat(legacyStorage.get("esa", 1)).containsExactly(op2);
+      assertThat(legacyStorage.getValue("esa", "name").substring(4).toStringUtf8()).isEqualTo("esa");
+      legacyStorage.addOperation("esa", op1);
+      assertThat(legacyStorage.get("esa", 0)).containsExactly(op1, snapshot, op2, op1);
+    } finally {
+      legacyStorage.close();
+      DalvConfig.set(DalvConfig.DATA_DIR, dataDir);
+      RocksDB.destroyDB(legacyDir, new Options());
+    }
+  }
+}
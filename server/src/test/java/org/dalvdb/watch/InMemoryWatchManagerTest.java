@@ -19,12 +19,20 @@ package org.dalvdb.watch;
 
 import com.google.protobuf.ByteString;
 import dalv.common.Common;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import org.dalvdb.DalvConfig;
 import org.dalvdb.proto.BackendProto;
 import org.dalvdb.proto.ClientProto;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -97,14 +105,312 @@ public class InMemoryWatchManagerTest {
     assertThat(mockBack.onCompleteCall.get()).isEqualTo(1);
   }
 
+  @Test
+  public void cancelClientWatchTest() throws InterruptedException {
+    WatchManager wm = new InMemoryWatchManager();
+    MockStreamObserver<ClientProto.WatchResponse> cancelled = new MockStreamObserver<>();
+    MockStreamObserver<ClientProto.WatchResponse> kept = new MockStreamObserver<>();
+    wm.addClientWatch("someUser", "testKey", cancelled);
+    wm.addClientWatch("someUser", "otherKey", kept);
+    wm.cancelClientWatch("someUser", "testKey");
+    assertThat(cancelled.onCompleteCall.get()).isEqualTo(1);
+    wm.notifyChange("someUser", Common.Operation.newBuilder()
+        .setKey("otherKey")
+        .setType(Common.OpType.PUT)
+        .setVal(ByteString.EMPTY)
+        .build());
+    kept.waitUntilChange();
+    assertThat(kept.onNextCall.get()).isEqualTo(1);
+    assertThat(kept.onCompleteCall.get()).isEqualTo(0);
+    assertThat(cancelled.onNextCall.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void batchedWatchTest() throws InterruptedException {
+    WatchManager wm = new InMemoryWatchManager();
+    MockStreamObserver<ClientProto.WatchResponse> batched = new MockStreamObserver<>();
+    MockStreamObserver<ClientProto.WatchResponse> single = new MockStreamObserver<>();
+    MockStreamObserver<BackendProto.WatchResponse> backend = new MockStreamObserver<>();
+    wm.addClientWatch("someUser", "testKey", true, batched);
+    wm.addClientWatch("someUser", "testKey", single);
+    wm.addBackendWatch("testKey", true, backend);
+    List<Common.Operation> ops = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+      ops.add(Common.Operation.newBuilder()
+          .setKey("testKey")
+          .setType(Common.OpType.PUT)
+          .setVal(ByteString.copyFromUtf8("v" + i))
+          .build());
+    ops.add(Common.Operation.newBuilder()
+        .setKey("otherKey")
+        .setType(Common.OpType.DEL)
+        .build());
+    wm.notifyChange("someUser", ops);
+    for (int i = 0; i < 50 && (single.onNextCall.get() < 3 || batched.onNextCall.get() < 1
+        || backend.onNextCall.get() < 1); i++)
+      single.waitUntilChange();
+
+    assertThat(batched.values).hasSize(1);
+    assertThat(batched.values.get(0).getOperationsList()).isEqualTo(ops.subList(0, 3));
+    assertThat(backend.values).hasSize(1);
+    assertThat(backend.values.get(0).getUserId()).isEqualTo("someUser");
+    assertThat(backend.values.get(0).getOperationsList()).isEqualTo(ops.subList(0, 3));
+    //the watchers which do not ask for batches still receive one response per operation
+    assertThat(single.values).hasSize(3);
+    for (int i = 0; i < 3; i++) {
+      assertThat(single.values.get(i).getOperation()).isEqualTo(ops.get(i));
+      assertThat(single.values.get(i).getOperationsList()).isEmpty();
+    }
+  }
+
+  @Test
+  public void overflowPoliciesTest() throws InterruptedException {
+    DalvConfig.set(DalvConfig.WATCH_QUEUE_SIZE, 2);
+    InMemoryWatchManager wm = new InMemoryWatchManager();
+    DalvConfig.set(DalvConfig.WATCH_QUEUE_SIZE, 1024);
+    MockServerStreamObserver<ClientProto.WatchResponse> dropOldest = new MockServerStreamObserver<>();
+    MockServerStreamObserver<ClientProto.WatchResponse> coalesce = new MockServerStreamObserver<>();
+    MockServerStreamObserver<ClientProto.WatchResponse> disconnect = new MockServerStreamObserver<>();
+    wm.addClientWatch("someUser", "testKey", false, false, Common.Overflow.DROP_OLDEST, dropOldest);
+    wm.addClientWatch("someUser", "testKey", false, false, Common.Overflow.COALESCE, coalesce);
+    wm.addClientWatch("someUser", "testKey", false, false, Common.Overflow.DISCONNECT, disconnect);
+    List<Common.Operation> ops = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+      ops.add(Common.Operation.newBuilder()
+          .setKey("testKey")
+          .setType(Common.OpType.PUT)
+          .setVal(ByteString.copyFromUtf8("v" + i))
+          .build());
+    wm.notifyChange("someUser", ops);
+    waitUntil(() -> disconnect.error != null);
+
+    assertThat(Status.fromThrowable(disconnect.error).getCode()).isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+    assertThat(Status.trailersFromThrowable(disconnect.error).get(InMemoryWatchManager.POSITION_TRAILER))
+        .isEqualTo("0");
+    assertThat(wm.disconnectedWatches()).isEqualTo(1);
+    //one by drop-oldest, two superseded by the last PUT and two queued for the disconnected watcher
+    assertThat(wm.droppedResponses()).isEqualTo(5);
+    assertThat(wm.queuedResponses()).isEqualTo(3);
+    assertThat(dropOldest.values).isEmpty();
+
+    dropOldest.ready();
+    coalesce.ready();
+    assertThat(dropOldest.values).extracting(ClientProto.WatchResponse::getOperation).isEqualTo(ops.subList(1, 3));
+    assertThat(coalesce.values).extracting(ClientProto.WatchResponse::getOperation).isEqualTo(ops.subList(2, 3));
+    assertThat(wm.queuedResponses()).isEqualTo(0);
+    //the disconnected watcher is removed
+    wm.cancelClientWatch("someUser", "testKey");
+    assertThat(disconnect.completed).isFalse();
+    assertThat(dropOldest.completed).isTrue();
+  }
+
+  @Test
+  public void coalesceDisconnectsWhenNothingIsSupersededTest() throws InterruptedException {
+    DalvConfig.set(DalvConfig.WATCH_QUEUE_SIZE, 2);
+    InMemoryWatchManager wm = new InMemoryWatchManager();
+    DalvConfig.set(DalvConfig.WATCH_QUEUE_SIZE, 1024);
+    MockServerStreamObserver<ClientProto.WatchResponse> coalesce = new MockServerStreamObserver<>();
+    wm.addClientWatch("someUser", "testKey", false, false, Common.Overflow.COALESCE, coalesce);
+    List<Common.Operation> ops = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+      ops.add(Common.Operation.newBuilder()
+          .setKey("testKey")
+          .setType(Common.OpType.ADD_TO_LIST)
+          .setVal(ByteString.copyFromUtf8("v" + i))
+          .build());
+    wm.notifyChange("someUser", ops);
+    waitUntil(() -> coalesce.error != null);
+
+    //list items are not superseded, dropping one would lose it
+    assertThat(Status.fromThrowable(coalesce.error).getCode()).isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+    assertThat(Status.trailersFromThrowable(coalesce.error).get(InMemoryWatchManager.POSITION_TRAILER))
+        .isEqualTo("0");
+    assertThat(wm.disconnectedWatches()).isEqualTo(1);
+    assertThat(coalesce.values).isEmpty();
+  }
+
+  @Test
+  public void blockedWatchTest() throws InterruptedException {
+    DalvConfig.set(DalvConfig.WATCH_QUEUE_SIZE, 1);
+    DalvConfig.set(DalvConfig.WATCH_BLOCK_TIMEOUT, 50L);
+    InMemoryWatchManager wm = new InMemoryWatchManager();
+    DalvConfig.set(DalvConfig.WATCH_QUEUE_SIZE, 1024);
+    DalvConfig.set(DalvConfig.WATCH_BLOCK_TIMEOUT, 1000L);
+    MockServerStreamObserver<BackendProto.WatchResponse> blocked = new MockServerStreamObserver<>();
+    MockServerStreamObserver<BackendProto.WatchResponse> slow = new MockServerStreamObserver<>();
+    wm.addBackendWatch("testKey", false, false, Common.Overflow.BLOCK, blocked);
+    wm.addBackendWatch("otherKey", false, false, Common.Overflow.BLOCK, slow);
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey("testKey")
+        .setType(Common.OpType.PUT)
+        .setVal(ByteString.EMPTY)
+        .build();
+    Common.Operation other = op.toBuilder().setKey("otherKey").build();
+    //the queue grows past its size without making the notification wait
+    wm.notifyChange("someUser", op);
+    wm.notifyChange("someUser", op);
+    waitUntil(() -> wm.queuedResponses() == 2);
+    //and the subscriber is disconnected when it is not drained within the timeout
+    Thread.sleep(100);
+    wm.notifyChange("someUser", op);
+    waitUntil(() -> blocked.error != null);
+    assertThat(Status.fromThrowable(blocked.error).getCode()).isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+    assertThat(wm.disconnectedWatches()).isEqualTo(1);
+    assertThat(wm.droppedResponses()).isEqualTo(2);
+
+    wm.notifyChange("someUser", other);
+    wm.notifyChange("someUser", other);
+    waitUntil(() -> wm.queuedResponses() == 2);
+    slow.ready();
+    assertThat(slow.values).hasSize(2);
+    assertThat(slow.error).isNull();
+    assertThat(wm.queuedResponses()).isEqualTo(0);
+  }
+
+  @Test
+  public void latestOnlyWatchTest() throws InterruptedException {
+    InMemoryWatchManager wm = new InMemoryWatchManager();
+    MockServerStreamObserver<BackendProto.WatchResponse> backend = new MockServerStreamObserver<>();
+    MockServerStreamObserver<ClientProto.WatchResponse> client = new MockServerStreamObserver<>();
+    wm.addBackendWatch("testKey", false, true, Common.Overflow.OVERFLOW_DEFAULT, backend);
+    wm.addClientWatch("esa", "testKey", true, true, Common.Overflow.OVERFLOW_DEFAULT, client);
+    List<Common.Operation> ops = new ArrayList<>();
+    for (int i = 0; i < 4; i++)
+      ops.add(Common.Operation.newBuilder()
+          .setKey("testKey")
+          .setType(Common.OpType.PUT)
+          .setVal(ByteString.copyFromUtf8("v" + i))
+          .build());
+    //only the last operation of a sync is queued
+    wm.notifyChange("esa", ops.subList(0, 2));
+    waitUntil(() -> wm.queuedResponses() == 2);
+    wm.notifyChange("sia", ops.get(2));
+    waitUntil(() -> wm.queuedResponses() == 3);
+    //replaces the queued responses of esa
+    wm.notifyChange("esa", ops.get(3));
+    waitUntil(() -> wm.replacedResponses() == 2);
+    assertThat(wm.queuedResponses()).isEqualTo(3);
+
+    backend.ready();
+    client.ready();
+    assertThat(backend.values).extracting(BackendProto.WatchResponse::getUserId).containsExactly("esa", "sia");
+    assertThat(backend.values).extracting(BackendProto.WatchResponse::getOperation)
+        .containsExactly(ops.get(3), ops.get(2));
+    assertThat(client.values).hasSize(1);
+    assertThat(client.values.get(0).getOperationsList()).containsExactly(ops.get(3));
+    assertThat(wm.droppedResponses()).isEqualTo(0);
+  }
+
+  @Test
+  public void latestOnlyListWatchTest() throws InterruptedException {
+    InMemoryWatchManager wm = new InMemoryWatchManager();
+    MockServerStreamObserver<BackendProto.WatchResponse> backend = new MockServerStreamObserver<>();
+    wm.addBackendWatch("friends", false, true, Common.Overflow.OVERFLOW_DEFAULT, backend);
+    Common.Operation addX = Common.Operation.newBuilder()
+        .setKey("friends")
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setVal(ByteString.copyFromUtf8("x"))
+        .build();
+    Common.Operation addY = addX.toBuilder().setVal(ByteString.copyFromUtf8("y")).build();
+    Common.Operation put = addX.toBuilder().setType(Common.OpType.PUT).setVal(ByteString.copyFromUtf8("z")).build();
+    //every list operation changes the state, so none of them is replaced
+    wm.notifyChange("esa", addX);
+    wm.notifyChange("esa", addY);
+    waitUntil(() -> wm.queuedResponses() == 2);
+    assertThat(wm.replacedResponses()).isEqualTo(0);
+    backend.ready();
+    assertThat(backend.values).extracting(BackendProto.WatchResponse::getOperation).containsExactly(addX, addY);
+
+    //a PUT replaces all the queued responses of the user, and a sync is sent from its last PUT on
+    MockServerStreamObserver<BackendProto.WatchResponse> slow = new MockServerStreamObserver<>();
+    wm.addBackendWatch("friends", false, true, Common.Overflow.OVERFLOW_DEFAULT, slow);
+    wm.notifyChange("esa", addX);
+    wm.notifyChange("esa", addY);
+    wm.notifyChange("esa", Arrays.asList(addX, put, addY));
+    waitUntil(() -> slow.values.isEmpty() && wm.replacedResponses() == 2 && wm.queuedResponses() == 2);
+    slow.ready();
+    assertThat(slow.values).extracting(BackendProto.WatchResponse::getOperation).containsExactly(put, addY);
+  }
+
+  private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+    for (int i = 0; i < 500 && !condition.getAsBoolean(); i++)
+      Thread.sleep(10);
+    assertThat(condition.getAsBoolean()).isTrue();
+  }
+
+  private static class MockServerStreamObserver<T> extends ServerCallStreamObserver<T> {
+    final List<T> values = new CopyOnWriteArrayList<>();
+    volatile Throwable error;
+    volatile boolean completed;
+    private volatile boolean ready;
+    private Runnable onReadyHandler;
+
+    private void ready() {
+      ready = true;
+      onReadyHandler.run();
+    }
+
+    @Override
+    public boolean isReady() {
+      return ready;
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+      this.onReadyHandler = onReadyHandler;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+    }
+
+    @Override
+    public void setCompression(String compression) {
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+    }
+
+    @Override
+    public void request(int count) {
+    }
+
+    @Override
+    public void setMessageCompression(boolean enable) {
+    }
+
+    @Override
+    public void onNext(T value) {
+      values.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      error = t;
+    }
+
+    @Override
+    public void onCompleted() {
+      completed = true;
+    }
+  }
+
   private static class MockStreamObserver<T> implements StreamObserver<T> {
     final AtomicInteger onNextCall = new AtomicInteger();
     final AtomicInteger onErrorCall = new AtomicInteger();
     final AtomicInteger onCompleteCall = new AtomicInteger();
+    final List<T> values = new CopyOnWriteArrayList<>();
     final Object monitor = new Object();
 
     @Override
     public void onNext(T value) {
+      values.add(value);
       onNextCall.incrementAndGet();
       synchronized (monitor) {
         monitor.notify();